@@ -0,0 +1,53 @@
+#!/bin/sh
+
+# Measures time to first output: how long `lox` takes from starting the JVM until a hello world
+# script has printed its line, with class data sharing off, with the JDK's default archive, and
+# with the archive built by `make cds` if there is one.
+#
+#     bench/startup.sh [RUNS]
+
+set -e
+
+cd "$(dirname "$0")/.."
+RUNS=${1:-20}
+JAVA=${JAVA:-java}
+JAR=target/lox.jar
+SCRIPT=bench/startup/hello.lox
+
+if [ ! -f "$JAR" ]; then
+  echo "$JAR not found; run make build first" >&2
+  exit 1
+fi
+
+now() {
+  date +%s%N
+}
+
+# prints the milliseconds from starting java with the given options until its first line of output
+first_output() {
+  start=$(now)
+  # the rest of the output is drained so the program doesn't fail on a closed pipe
+  first=$("$JAVA" "$@" -jar "$JAR" "$SCRIPT" | { read -r _; now; cat > /dev/null; })
+  echo $(( (first - start) / 1000000 ))
+}
+
+measure() {
+  label=$1
+  shift
+  i=0
+  while [ $i -lt "$RUNS" ]; do
+    first_output "$@"
+    i=$((i + 1))
+  done | sort -n | awk -v label="$label" '
+    { ms[NR] = $1 }
+    END { printf "%-12s %8d %8d %8d\n", label, ms[1], ms[int((NR + 1) / 2)], ms[NR] }'
+}
+
+printf "%-12s %8s %8s %8s\n" "cds" "min ms" "median" "max"
+# warm the file system cache
+"$JAVA" -jar "$JAR" "$SCRIPT" > /dev/null
+measure off -Xshare:off
+measure default
+if [ target/lox.jsa -nt "$JAR" ]; then
+  measure app -XX:SharedArchiveFile=target/lox.jsa
+fi
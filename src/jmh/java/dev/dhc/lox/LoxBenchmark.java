@@ -0,0 +1,84 @@
+package dev.dhc.lox;
+
+import dev.dhc.lox.AstNode.Program;
+import dev.dhc.lox.Token.Type;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// Throughput of each interpreter phase on the scripts in bench/. Run with `make jmh`, which
+// also attaches the GC profiler to report allocation rates.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoxBenchmark {
+  @Param({"fib", "binary_trees", "method_call", "string_building", "instantiation", "zoo"})
+  public String workload;
+
+  private byte[] source;
+  private Program parsed;
+  private Program optimized;
+
+  @Setup
+  public void setup() throws IOException {
+    try (var in = getClass().getResourceAsStream("/" + workload + ".lox")) {
+      if (in == null) throw new IOException("workload not found: " + workload);
+      source = in.readAllBytes();
+    }
+    parsed = parser().program();
+    optimized = Optimizer.optimize(Resolver.resolve(parsed));
+  }
+
+  private Parser parser() {
+    return new Parser(new Scanner(new ByteArrayInputStream(source)));
+  }
+
+  @Benchmark
+  public void scan(Blackhole bh) {
+    final var scanner = new Scanner(new ByteArrayInputStream(source));
+    while (true) {
+      final var tok = scanner.nextToken();
+      bh.consume(tok);
+      if (tok.type() == Type.EOF) break;
+    }
+  }
+
+  @Benchmark
+  public Program parse() {
+    return parser().program();
+  }
+
+  @Benchmark
+  public Program resolve() {
+    return Resolver.resolve(parsed);
+  }
+
+  @Benchmark
+  public Program optimize() {
+    return Optimizer.optimize(Resolver.resolve(parsed));
+  }
+
+  @Benchmark
+  public void execute() {
+    final var evaluator = new Evaluator(new OutputSink(OutputStream.nullOutputStream()));
+    for (var stmt : optimized.stmts()) {
+      evaluator.execute(stmt);
+    }
+  }
+}
@@ -3,6 +3,8 @@ package dev.dhc.lox;
 import java.util.List;
 import java.util.Optional;
 
+// Nodes are deeply immutable, so that a resolved and optimized Program can be shared by any number
+// of evaluators running on different threads.
 public sealed interface AstNode {
   Token tok();
 
@@ -39,6 +41,10 @@ public sealed interface AstNode {
   record StrExpr(Token tok, String value) implements Expr {
     @Override public String toString() { return value; }
   }
+  // A literal whose runtime value is created once, at resolve time.
+  record ConstExpr(Token tok, Value value) implements Expr {
+    @Override public String toString() { return value.toString(); }
+  }
   record BinaryExpr(Token tok, Expr left, BinOp op, Expr right) implements Expr {
     @Override public String toString() {
       return String.format("(%s %s %s)", op.s, left, right);
@@ -65,6 +71,7 @@ public sealed interface AstNode {
     }
   }
   record CallExpr(Token tok, Expr callee, List<Expr> arguments) implements Expr {
+    public CallExpr { arguments = List.copyOf(arguments); }
     @Override public String toString() {
       return String.format("(call %s %s)", callee, arguments);
     }
@@ -73,17 +80,60 @@ public sealed interface AstNode {
   record SetExpr(Token tok, Expr object, Token name, Expr value) implements Expr {}
   record ThisExpr(Token tok, int scopeDepth) implements Expr {}
   record SuperExpr(Token tok, Token method, int scopeDepth) implements Expr {}
+  // A call to a global function whose body was inlined. The inlined expression is only used
+  // while the global still holds the function declared with body; otherwise call is evaluated.
+  record InlineExpr(Token tok, CallExpr call, String name, List<Stmt> body, Expr inlined) implements Expr {
+    public InlineExpr { body = List.copyOf(body); }
+    @Override public String toString() { return call.toString(); }
+  }
+  // The value of the index-th argument of the enclosing InlineExpr.
+  record ArgExpr(Token tok, int index) implements Expr {}
+  // A loop-invariant expression, evaluated at most once per execution of the enclosing loop.
+  record HoistedExpr(Token tok, Expr expr, int slot) implements Expr {
+    @Override public String toString() { return expr.toString(); }
+  }
 
   sealed interface Stmt extends AstNode {}
   record VarDecl(Token tok, Token name, Optional<Expr> init) implements Stmt {}
-  record FunDecl(Token tok, Token name, List<Token> params, List<Stmt> body) implements Stmt {}
+  record FunDecl(Token tok, Token name, List<Token> params, List<Stmt> body) implements Stmt {
+    public FunDecl {
+      params = List.copyOf(params);
+      body = List.copyOf(body);
+    }
+  }
   record ExprStmt(Token tok, Expr expr) implements Stmt {}
   record PrintStmt(Token tok, Expr expr) implements Stmt {}
-  record BlockStmt(Token tok, List<Stmt> stmts) implements Stmt {}
+  record BlockStmt(Token tok, List<Stmt> stmts) implements Stmt {
+    public BlockStmt { stmts = List.copyOf(stmts); }
+  }
   record IfElseStmt(Token tok, Expr cond, Stmt conseq, Optional<Stmt> alt) implements Stmt {}
   record WhileStmt(Token tok, Expr cond, Stmt body) implements Stmt {}
+  // `for (var name in iterable) body`, with name declared in a scope of its own around the body.
+  // If reuseScope is set, a block body gets one environment per loop instead of one per element.
+  record ForEachStmt(Token tok, Token name, Expr iterable, Stmt body, boolean reuseScope)
+      implements Stmt {}
   record ReturnStmt(Token tok, Expr expr) implements Stmt {}
-  record ClassDecl(Token tok, Token name, Optional<VarExpr> superclass, List<FunDecl> methods) implements Stmt {}
+  record ClassDecl(Token tok, Token name, Optional<VarExpr> superclass, List<FunDecl> methods) implements Stmt {
+    public ClassDecl { methods = List.copyOf(methods); }
+  }
+  // `import "name";` at the top level, which runs the module in the program's globals. The
+  // resolver sets path to the module's file, resolved against the importing file's directory.
+  record ImportStmt(Token tok, String name, String path) implements Stmt {}
+  // A while loop with slots for hoisted expressions. If reuseScope is set, a block body
+  // gets one environment per execution of the loop instead of one per iteration.
+  record LoopStmt(Token tok, Expr cond, Stmt body, boolean reuseScope, int slots) implements Stmt {}
+  // A while loop of the form `while (i < limit) { ...; i = i + step; }` whose body doesn't
+  // otherwise touch the counter, so the test and increment are done directly on doubles.
+  record CounterLoopStmt(Token tok, VarExpr counter, BinOp op, Expr limit, double step, List<Stmt> body,
+                         boolean reuseScope, int slots) implements Stmt {
+    public CounterLoopStmt { body = List.copyOf(body); }
+  }
 
-  record Program(List<Stmt> stmts) {}
+  // A pure global function, produced by the Memoizer. Calls whose arguments are all numbers,
+  // strings, booleans or nil are served from a cache of up to capacity results.
+  record MemoFunDecl(Token tok, FunDecl fun, int capacity) implements Stmt {}
+
+  record Program(List<Stmt> stmts) {
+    public Program { stmts = List.copyOf(stmts); }
+  }
 }
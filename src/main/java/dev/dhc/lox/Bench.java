@@ -0,0 +1,282 @@
+package dev.dhc.lox;
+
+import dev.dhc.lox.Driver.Command;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.Stream;
+
+// Runs scripts repeatedly in-process and reports wall time and allocation per run, optionally
+// comparing the median against a baseline written by an earlier `lox bench --json` run.
+public class Bench {
+  private final OutputSink out;
+  private final PrintStream err;
+  private final com.sun.management.ThreadMXBean threads =
+      (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+  public Bench(OutputSink out, PrintStream err) {
+    this.out = out;
+    this.err = err;
+  }
+
+  public record Result(String script, int runs, long minNanos, long medianNanos, long p99Nanos,
+                       long allocatedBytes) {}
+
+  public Status run(Command.Bench cmd) throws IOException {
+    final var root = Paths.get(cmd.path());
+    final var results = new ArrayList<Result>();
+    for (var script : scripts(root)) {
+      final var name = Files.isDirectory(root)
+          ? root.relativize(script).toString()
+          : script.getFileName().toString();
+      results.add(measure(name, script, cmd));
+    }
+
+    out.println(String.format("%-32s %6s %12s %12s %12s %14s",
+        "script", "runs", "min ms", "median ms", "p99 ms", "alloc/run"));
+    for (var r : results) {
+      out.println(String.format(Locale.ROOT, "%-32s %6d %12.3f %12.3f %12.3f %14d",
+          r.script(), r.runs(), millis(r.minNanos()), millis(r.medianNanos()), millis(r.p99Nanos()),
+          r.allocatedBytes()));
+    }
+
+    if (cmd.json().isPresent()) {
+      Files.writeString(Paths.get(cmd.json().get()), toJson(cmd, results));
+    }
+    if (cmd.baseline().isPresent()) {
+      return compare(results, readBaseline(Paths.get(cmd.baseline().get())), cmd.threshold());
+    }
+    return Status.SUCCESS;
+  }
+
+  private static List<Path> scripts(Path root) throws IOException {
+    if (!Files.isDirectory(root)) return List.of(root);
+    try (Stream<Path> files = Files.walk(root)) {
+      return files.filter(p -> p.toString().endsWith(".lox")).sorted().toList();
+    }
+  }
+
+  private static double millis(long nanos) {
+    return nanos / 1e6;
+  }
+
+  private Result measure(String name, Path script, Command.Bench cmd) throws IOException {
+    final var captured = new ByteArrayOutputStream();
+    final var times = new long[cmd.runs()];
+    final var allocated = new long[cmd.runs()];
+    for (int i = 0; i < cmd.warmup() + cmd.runs(); i++) {
+      captured.reset();
+      final var sink = new OutputSink(cmd.showOutput() ? captured : OutputStream.nullOutputStream());
+      final var allocatedBefore = threads.getCurrentThreadAllocatedBytes();
+      final var start = System.nanoTime();
+      final var evaluator = new Evaluator(sink);
+      evaluator.run(Driver.compile(script));
+      sink.flush();
+      final var elapsed = System.nanoTime() - start;
+      final var allocatedAfter = threads.getCurrentThreadAllocatedBytes();
+      if (i >= cmd.warmup()) {
+        times[i - cmd.warmup()] = elapsed;
+        allocated[i - cmd.warmup()] = allocatedAfter - allocatedBefore;
+      }
+    }
+    if (cmd.showOutput()) {
+      out.print(captured.toString(StandardCharsets.UTF_8));
+    }
+    Arrays.sort(times);
+    Arrays.sort(allocated);
+    return new Result(name, cmd.runs(), times[0], percentile(times, 50), percentile(times, 99),
+        percentile(allocated, 50));
+  }
+
+  // nearest-rank percentile of sorted values
+  private static long percentile(long[] sorted, int p) {
+    final var rank = (int) Math.ceil(p / 100.0 * sorted.length);
+    return sorted[Math.max(0, rank - 1)];
+  }
+
+  private Status compare(List<Result> results, Map<String, Long> baseline, double threshold) {
+    out.flush();
+    var status = Status.SUCCESS;
+    for (var r : results) {
+      final var base = baseline.get(r.script());
+      if (base == null) continue;
+      final var change = 100.0 * (r.medianNanos() - base) / base;
+      if (change > threshold) {
+        err.println(String.format(Locale.ROOT,
+            "%s: median %.3f ms is %.1f%% slower than baseline %.3f ms (threshold %.1f%%)",
+            r.script(), millis(r.medianNanos()), change, millis(base), threshold));
+        status = Status.FAILURE;
+      }
+    }
+    return status;
+  }
+
+  private static String toJson(Command.Bench cmd, List<Result> results) {
+    final var sb = new StringBuilder();
+    sb.append("{\n");
+    sb.append("  \"warmup\": ").append(cmd.warmup()).append(",\n");
+    sb.append("  \"runs\": ").append(cmd.runs()).append(",\n");
+    sb.append("  \"results\": [");
+    for (int i = 0; i < results.size(); i++) {
+      final var r = results.get(i);
+      sb.append(i == 0 ? "\n" : ",\n");
+      sb.append("    {\"script\": ").append(quote(r.script()))
+          .append(", \"min_ns\": ").append(r.minNanos())
+          .append(", \"median_ns\": ").append(r.medianNanos())
+          .append(", \"p99_ns\": ").append(r.p99Nanos())
+          .append(", \"alloc_bytes\": ").append(r.allocatedBytes())
+          .append("}");
+    }
+    sb.append(results.isEmpty() ? "]\n" : "\n  ]\n");
+    sb.append("}\n");
+    return sb.toString();
+  }
+
+  private static String quote(String s) {
+    final var sb = new StringBuilder("\"");
+    for (char c : s.toCharArray()) {
+      switch (c) {
+        case '"' -> sb.append("\\\"");
+        case '\\' -> sb.append("\\\\");
+        default -> {
+          if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+          else sb.append(c);
+        }
+      }
+    }
+    return sb.append('"').toString();
+  }
+
+  // script -> median_ns from a file written by toJson
+  private static Map<String, Long> readBaseline(Path path) throws IOException {
+    final var json = new JsonReader(Files.readString(path));
+    final var medians = new HashMap<String, Long>();
+    if (!(json.value() instanceof Map<?, ?> root) || !(root.get("results") instanceof List<?> rs)) {
+      throw new IOException("invalid baseline: " + path);
+    }
+    for (var r : rs) {
+      if (r instanceof Map<?, ?> m && m.get("script") instanceof String s
+          && m.get("median_ns") instanceof Double median) {
+        medians.put(s, median.longValue());
+      }
+    }
+    return medians;
+  }
+
+  // Just enough JSON to read results back: objects, arrays, strings, numbers and literals.
+  private static final class JsonReader {
+    private final String s;
+    private int pos = 0;
+
+    JsonReader(String s) {
+      this.s = s;
+    }
+
+    private IOException error(String message) {
+      return new IOException(String.format("invalid json at offset %d: %s", pos, message));
+    }
+
+    private char peek() throws IOException {
+      while (pos < s.length() && Character.isWhitespace(s.charAt(pos))) pos++;
+      if (pos == s.length()) throw error("unexpected end");
+      return s.charAt(pos);
+    }
+
+    private void expect(char c) throws IOException {
+      if (peek() != c) throw error("expected " + c);
+      pos++;
+    }
+
+    Object value() throws IOException {
+      return switch (peek()) {
+        case '{' -> {
+          pos++;
+          final var map = new HashMap<String, Object>();
+          if (peek() == '}') {
+            pos++;
+            yield map;
+          }
+          do {
+            final var key = string();
+            expect(':');
+            map.put(key, value());
+          } while (peek() == ',' && pos++ >= 0);
+          expect('}');
+          yield map;
+        }
+        case '[' -> {
+          pos++;
+          final var list = new ArrayList<Object>();
+          if (peek() == ']') {
+            pos++;
+            yield list;
+          }
+          do {
+            list.add(value());
+          } while (peek() == ',' && pos++ >= 0);
+          expect(']');
+          yield list;
+        }
+        case '"' -> string();
+        default -> {
+          final var start = pos;
+          while (pos < s.length() && ",}] \n\t\r".indexOf(s.charAt(pos)) < 0) pos++;
+          final var token = s.substring(start, pos);
+          yield switch (token) {
+            case "true" -> true;
+            case "false" -> false;
+            case "null" -> null;
+            default -> {
+              try {
+                yield Double.parseDouble(token);
+              } catch (NumberFormatException e) {
+                throw error("bad token " + token);
+              }
+            }
+          };
+        }
+      };
+    }
+
+    private String string() throws IOException {
+      expect('"');
+      final var sb = new StringBuilder();
+      while (true) {
+        if (pos == s.length()) throw error("unterminated string");
+        final var c = s.charAt(pos++);
+        if (c == '"') return sb.toString();
+        if (c != '\\') {
+          sb.append(c);
+          continue;
+        }
+        if (pos == s.length()) throw error("unterminated string");
+        final var e = s.charAt(pos++);
+        switch (e) {
+          case 'n' -> sb.append('\n');
+          case 't' -> sb.append('\t');
+          case 'r' -> sb.append('\r');
+          case 'b' -> sb.append('\b');
+          case 'f' -> sb.append('\f');
+          case 'u' -> {
+            if (pos + 4 > s.length()) throw error("bad escape");
+            sb.append((char) Integer.parseInt(s.substring(pos, pos + 4), 16));
+            pos += 4;
+          }
+          default -> sb.append(e);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,111 @@
+package dev.dhc.lox;
+
+import dev.dhc.lox.Error.BudgetError;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Limits on one execution: fuel is the number of statements and calls it may run, and allocation
+// an estimate of the bytes it may allocate for environments, instances, functions and strings.
+// Zero means unlimited.
+public record Budget(long fuel, long allocation) {
+  public static final Budget UNLIMITED = new Budget(0, 0);
+
+  // Accounts for the fuel and allocation used by one execution and the tasks it spawns, which draw
+  // on the same budget. The evaluator counts both down itself from what it has taken, and only
+  // calls in when that runs out: at fuel checkpoints, which are also where it yields to its
+  // scheduler, and when it allocates past its allowance.
+  static final class Meter {
+    // fuel per time slice when running under a scheduler or on a limited budget, so that tasks
+    // sharing the budget don't take it all at once
+    private static final long QUANTUM = 10_000;
+    // bytes of a limited allocation budget taken at a time
+    private static final long CHUNK = 64 * 1024;
+
+    private final Budget budget;
+    private final Optional<Scheduler> scheduler;
+    // taken from the budget so far by this execution and its tasks
+    private final AtomicLong used;
+    private final AtomicLong allocated;
+
+    Meter(Budget budget, Optional<Scheduler> scheduler) {
+      this(budget, scheduler, new AtomicLong(), new AtomicLong());
+    }
+
+    private Meter(Budget budget, Optional<Scheduler> scheduler, AtomicLong used, AtomicLong allocated) {
+      this.budget = budget;
+      this.scheduler = scheduler;
+      this.used = used;
+      this.allocated = allocated;
+    }
+
+    // A meter for a task spawned by this meter's execution, sharing its budget and scheduler.
+    Meter fork() {
+      return new Meter(budget, scheduler, used, allocated);
+    }
+
+    // Takes fuel for the next slice, or returns 0 if the budget is used up.
+    long fuel() {
+      if (budget.fuel() == 0) return scheduler.isPresent() ? QUANTUM : Long.MAX_VALUE;
+      return take(used, budget.fuel(), QUANTUM);
+    }
+
+    // Takes an allowance of bytes to allocate, or returns 0 if the budget is used up.
+    long allowance() {
+      if (budget.allocation() == 0) return Long.MAX_VALUE;
+      return take(allocated, budget.allocation(), CHUNK);
+    }
+
+    private static long take(AtomicLong taken, long limit, long most) {
+      while (true) {
+        final var current = taken.get();
+        final var n = Math.min(most, limit - current);
+        if (n <= 0) return 0;
+        if (taken.compareAndSet(current, current + n)) return n;
+      }
+    }
+
+    // Called when the previous slice is used up, by the statement or call at line. Returns the
+    // fuel for the next slice, including what that statement or call uses.
+    long checkpoint(int line) {
+      final var slice = fuel();
+      if (slice == 0) {
+        throw new BudgetError(line, String.format("Out of fuel after %d statements and calls.", used.get()));
+      }
+      scheduler.ifPresent(Scheduler::yield);
+      return slice;
+    }
+
+    // Called when the statement at line allocated overdraft bytes past the allowance. Returns the
+    // next allowance.
+    long overdraw(int line, long overdraft) {
+      final var total = allocated.addAndGet(overdraft);
+      if (total > budget.allocation()) {
+        throw new BudgetError(line, String.format(
+            "Allocated %d bytes, over the budget of %d bytes.", total, budget.allocation()));
+      }
+      return allowance();
+    }
+
+    // Runs a task's execution in a slot of the scheduler, like any other execution.
+    void enter() {
+      scheduler.ifPresent(Scheduler::acquire);
+    }
+
+    // Ends a task's execution, giving back the fuel and allowance it took but didn't use.
+    void exit(long fuel, long allowance) {
+      if (budget.fuel() > 0 && fuel > 0) used.addAndGet(-fuel);
+      if (budget.allocation() > 0 && allowance > 0) allocated.addAndGet(-allowance);
+      scheduler.ifPresent(Scheduler::release);
+    }
+
+    // Gives up the scheduler slot while blocked, e.g. joining a task or waiting on a channel, so
+    // the tasks being waited for can run. resume() takes it back.
+    void pause() {
+      scheduler.ifPresent(Scheduler::release);
+    }
+
+    void resume() {
+      scheduler.ifPresent(Scheduler::acquire);
+    }
+  }
+}
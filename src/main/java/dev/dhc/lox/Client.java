@@ -0,0 +1,83 @@
+package dev.dhc.lox;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+// The thin client for Server: sends its arguments and working directory, forwards its stdin, copies
+// the output frames to stdout and stderr, and returns the status of the run. It loads none of the
+// interpreter.
+final class Client {
+  private Client() {}
+
+  static Status run(Path socket, String[] args) throws IOException {
+    return run(socket, Paths.get("").toAbsolutePath(), args, System.in, System.out, System.err);
+  }
+
+  static Status run(Path socket, Path cwd, String[] args, InputStream stdin, PrintStream stdout,
+                    PrintStream stderr) throws IOException {
+    try (var channel = SocketChannel.open(UnixDomainSocketAddress.of(socket))) {
+      final var out = new DataOutputStream(Channels.newOutputStream(channel));
+      out.writeUTF(cwd.toString());
+      out.writeInt(args.length);
+      for (var arg : args) {
+        out.writeUTF(arg);
+      }
+      out.flush();
+      // the server reads stdin only as the program does, and closes the connection when it's done
+      Thread.ofPlatform().daemon().name("lox-stdin").start(() -> forward(stdin, out));
+
+      final var in = new DataInputStream(Channels.newInputStream(channel));
+      while (true) {
+        final var type = in.readByte();
+        final var n = in.readInt();
+        switch (type) {
+          case Server.STDOUT -> copy(in, n, stdout);
+          case Server.STDERR -> {
+            // keep the streams in the order the server wrote them
+            stdout.flush();
+            copy(in, n, stderr);
+          }
+          case Server.EXIT -> {
+            stdout.flush();
+            for (var status : Status.values()) {
+              if (status.code() == n) return status;
+            }
+            return Status.FAILURE;
+          }
+          default -> throw new IOException("unexpected frame " + type);
+        }
+      }
+    }
+  }
+
+  private static void forward(InputStream stdin, DataOutputStream out) {
+    final var buffer = new byte[8192];
+    try {
+      for (int n; (n = stdin.read(buffer)) >= 0; ) {
+        out.writeByte(Server.STDIN);
+        out.writeInt(n);
+        out.write(buffer, 0, n);
+        out.flush();
+      }
+      out.writeByte(Server.STDIN);
+      out.writeInt(0);
+      out.flush();
+    } catch (IOException e) {
+      // the command finished without reading all of it
+    }
+  }
+
+  private static void copy(DataInputStream in, int n, PrintStream out) throws IOException {
+    final var bytes = new byte[n];
+    in.readFully(bytes);
+    out.write(bytes, 0, n);
+  }
+}
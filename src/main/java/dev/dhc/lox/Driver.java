@@ -1,44 +1,107 @@
 package dev.dhc.lox;
 
+import dev.dhc.lox.AstNode.Program;
 import dev.dhc.lox.Token.Type;
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
+import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
 
 public class Driver {
   private final InputStream in;
-  private final PrintStream out;
+  private final OutputSink out;
   private final PrintStream err;
+  private final Options options;
+  private final Stats stats;
+  private final Optional<ProgramCache> programs;
+
+  // memoize is the number of results cached per pure function, or 0 not to memoize.
+  public record Options(boolean stats, boolean heap, Budget budget, int memoize) {
+    public static final Options DEFAULT = new Options(false, false, Budget.UNLIMITED, 0);
+    public static final int MEMO_SIZE = 10_000;
+  }
 
   public Driver(InputStream in, PrintStream out, PrintStream err) {
+    this(in, out, err, Options.DEFAULT);
+  }
+
+  public Driver(InputStream in, PrintStream out, PrintStream err, Options options) {
+    this(in, out, err, options, Optional.empty());
+  }
+
+  public Driver(InputStream in, PrintStream out, PrintStream err, Options options,
+                Optional<ProgramCache> programs) {
     this.in = in;
-    this.out = out;
+    this.programs = programs;
+    this.out = new OutputSink(out);
     this.err = err;
+    this.options = options;
+    this.stats = options.heap() ? new Stats.Heap(err)
+        : options.stats() ? new Stats.Counting()
+        : Stats.NONE;
   }
 
   public sealed interface Command {
     record Tokenize(String path) implements Command {}
     record Parse(String path) implements Command {}
     record Evaluate(String path) implements Command {}
-    record Run(String path) implements Command {}
+    // snapshot is an image written by the Snapshot command to restore before running
+    record Run(String path, Optional<String> snapshot) implements Command {
+      public Run(String path) {
+        this(path, Optional.empty());
+      }
+    }
+    record Snapshot(String path, String output) implements Command {}
+    record RunParallel(List<String> paths, int workers) implements Command {}
     record Repl() implements Command {}
+    record Profile(String path, double intervalMillis, int top, String output) implements Command {}
+    record Bench(String path, int warmup, int runs, boolean showOutput, Optional<String> json,
+                 Optional<String> baseline, double threshold) implements Command {}
   }
 
   public Status run(Command cmd) {
     try {
-      return runInternal(cmd);
+      return runAndReport(cmd);
+    } finally {
+      if (options.stats() && stats instanceof Stats.Counting counting) counting.report(err);
+      if (stats instanceof Stats.Heap heap) heap.report();
+    }
+  }
+
+  private Status runAndReport(Command cmd) {
+    try {
+      final var status = runInternal(cmd);
+      out.flush();
+      return status;
     } catch (Error e) {
       report(e);
       return e.code();
     } catch (IOException e) {
       report(e);
       return Status.IO_ERROR;
+    } catch (UncheckedIOException e) {
+      // the output stream itself failed, so don't try to flush it
+      err.println(e.getCause());
+      return Status.IO_ERROR;
+    } catch (RuntimeException | StackOverflowError e) {
+      // keep what the program printed before failing
+      out.flush();
+      throw e;
     }
   }
 
@@ -70,38 +133,67 @@ public class Driver {
       case Command.Evaluate(var path) -> {
         final var evaluator = new Evaluator(out);
         final var resolver = new Resolver();
+        final var optimizer = new Optimizer();
         try (var reader = Files.newBufferedReader(Paths.get(path))) {
           final var exprs = reader.lines().map(this::parse).map(Parser::expr);
           exprs.forEach(expr -> {
-            final var value = evaluator.evaluate(resolver.resolve(expr));
+            final var value = evaluator.evaluate(optimizer.optimize(resolver.resolve(expr)));
             out.println(value);
           });
         }
         yield Status.SUCCESS;
       }
 
-      case Command.Run(var path) -> {
-        final var program = parseFile(path).program();
-        final var resolved = Resolver.resolve(program);
-        final var evaluator = new Evaluator(out);
-        for (var stmt : resolved.stmts()) {
-          evaluator.execute(stmt);
+      case Command.Run(var path, var snapshot) -> {
+        final var file = Paths.get(path);
+        final var program = load(file);
+        final var meter = new Budget.Meter(options.budget(), Optional.empty());
+        final var evaluator = new Evaluator(out, in, stats, null, meter);
+        if (snapshot.isPresent()) {
+          final var start = System.nanoTime();
+          Snapshot.restore(Paths.get(snapshot.get()), evaluator);
+          stats.phase("restore", System.nanoTime() - start);
         }
+        phase("execute", file, stats, () -> {
+          evaluator.run(program);
+          return null;
+        });
         yield Status.SUCCESS;
       }
 
+      case Command.RunParallel(var paths, var workers) -> runParallel(paths, new Scheduler(workers));
+
+      case Command.Snapshot(var path, var output) -> {
+        final var file = Paths.get(path);
+        final var meter = new Budget.Meter(options.budget(), Optional.empty());
+        final var evaluator = new Evaluator(out, in, stats, null, meter);
+        Snapshot.save(file, compile(file, stats), evaluator, Paths.get(output));
+        yield Status.SUCCESS;
+      }
+
+      case Command.Bench bench -> new Bench(out, err).run(bench);
+
+      case Command.Profile profile -> {
+        final var program = load(Paths.get(profile.path()));
+        final var meter = new Budget.Meter(options.budget(), Optional.empty());
+        final var frames = new Profiler.Frames();
+        yield new Profiler(out, err).run(profile, program, frames, new Evaluator(out, in, stats, frames, meter));
+      }
+
       case Command.Repl() -> {
         final var reader = new BufferedReader(new InputStreamReader(in));
         final var evaluator = new Evaluator(out);
         final var resolver = new Resolver();
+        final var optimizer = new Optimizer();
         while (true) {
           out.print("> ");
+          out.flush();
           try {
             final var line = reader.readLine();
             if (line == null) break;
             final var stmt = parse(line).stmt();
             out.println(stmt);
-            evaluator.execute(resolver.resolve(stmt));
+            evaluator.execute(optimizer.optimize(resolver.resolve(stmt)));
           } catch (Exception e) {
             report(e);
           }
@@ -111,7 +203,65 @@ public class Driver {
     };
   }
 
+  private record Captured(String output, Optional<Exception> error) {}
+
+  // Runs each script on its own virtual thread with its own evaluator and budget, time-sliced by the
+  // scheduler, then prints the output and errors of each in the given order. A script that is given
+  // more than once is only compiled once.
+  private Status runParallel(List<String> paths, Scheduler scheduler) {
+    try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      final var compiled = new HashMap<String, Future<Program>>();
+      for (var path : paths) {
+        compiled.computeIfAbsent(path, p -> executor.submit(() -> load(Paths.get(p))));
+      }
+      final var runs = paths.stream()
+          .map(path -> executor.submit(() -> runCaptured(compiled.get(path), scheduler)))
+          .toList();
+      var status = Status.SUCCESS;
+      for (var run : runs) {
+        final var captured = run.get();
+        out.print(captured.output());
+        if (captured.error().isPresent()) {
+          final var e = captured.error().get();
+          report(e);
+          if (status == Status.SUCCESS) {
+            status = e instanceof Error error ? error.code() : Status.IO_ERROR;
+          }
+        }
+      }
+      return status;
+    } catch (InterruptedException | ExecutionException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private Captured runCaptured(Future<Program> program, Scheduler scheduler)
+      throws InterruptedException {
+    final var buffer = new ByteArrayOutputStream();
+    final var sink = new OutputSink(buffer);
+    Optional<Exception> error = Optional.empty();
+    try {
+      final var compiled = program.get();
+      final var meter = new Budget.Meter(options.budget(), Optional.of(scheduler));
+      scheduler.acquire();
+      try {
+        new Evaluator(sink, Stats.NONE, null, meter).run(compiled);
+      } finally {
+        scheduler.release();
+      }
+    } catch (ExecutionException e) {
+      if (!(e.getCause() instanceof Exception cause)) throw new IllegalStateException(e);
+      error = Optional.of(cause);
+    } catch (Error e) {
+      error = Optional.of(e);
+    }
+    sink.flush();
+    return new Captured(buffer.toString(StandardCharsets.UTF_8), error);
+  }
+
   private void report(Exception e) {
+    // keep stdout and stderr in program order
+    out.flush();
     if (e instanceof Error) {
       err.println(e.getMessage());
     } else {
@@ -119,12 +269,55 @@ public class Driver {
     }
   }
 
-  private Scanner scanFile(String path) throws IOException {
-    return new Scanner(Files.newInputStream(Paths.get(path)));
+  // Through the server's cache, --stats also times the lookup as the load phase.
+  private Program load(Path path) throws IOException {
+    final var program = programs.isPresent() ? programs.get().get(path, stats) : compile(path, stats);
+    return options.memoize() > 0 ? Memoizer.memoize(program, options.memoize()) : program;
+  }
+
+  // Parses, resolves and optimizes a whole program.
+  static Program compile(Path path) throws IOException {
+    return compile(path, Stats.NONE);
   }
 
-  private Parser parseFile(String path) throws IOException {
-    return new Parser(scanFile(path));
+  static Program compile(Path path, Stats stats) throws IOException {
+    try (var in = Files.newInputStream(path)) {
+      return compile(in, path, stats);
+    }
+  }
+
+  // Compiles the source in, read from path.
+  static Program compile(InputStream in, Path path, Stats stats) {
+    // scanning happens on demand during parsing, so its time is split out afterwards
+    final var scanner = new Scanner(in, stats != Stats.NONE);
+    final var start = System.nanoTime();
+    final var program = phase("parse", path, Stats.NONE, () -> new Parser(scanner).program());
+    stats.phase("scan", scanner.elapsedNanos());
+    stats.phase("parse", System.nanoTime() - start - scanner.elapsedNanos());
+    final var dir = path.toAbsolutePath().getParent();
+    final var resolved = phase("resolve", path, stats, () -> Resolver.resolve(program, dir));
+    return phase("optimize", path, stats, () -> Optimizer.optimize(resolved));
+  }
+
+  // Times a phase for --stats and reports it to JFR.
+  private static <T> T phase(String name, Path path, Stats stats, Supplier<T> body) {
+    final var event = Events.recording() ? new Events.Phase() : null;
+    if (event != null) event.begin();
+    final var start = System.nanoTime();
+    try {
+      return body.get();
+    } finally {
+      stats.phase(name, System.nanoTime() - start);
+      if (event != null && event.shouldCommit()) {
+        event.phase = name;
+        event.path = path.toString();
+        event.commit();
+      }
+    }
+  }
+
+  private Scanner scanFile(String path) throws IOException {
+    return new Scanner(Files.newInputStream(Paths.get(path)));
   }
 
   private Parser parse(String text) {
@@ -1,19 +1,44 @@
 package dev.dhc.lox;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.Optional;
 
 public class Environment {
   private final Optional<Environment> up;
-  private final Map<String, Value> values = new HashMap<>();
+  // concurrent only for the globals and scopes captured by spawned tasks (see share)
+  private Map<String, Value> values;
 
   public Environment() {
     up = Optional.empty();
+    values = new HashMap<>();
   }
 
   public Environment(Environment up) {
     this.up = Optional.of(up);
+    values = new HashMap<>();
+  }
+
+  private Environment(Map<String, Value> values) {
+    up = Optional.empty();
+    this.values = values;
+  }
+
+  // The globals of a program, which every task of it shares.
+  static Environment globals() {
+    return new Environment(new ConcurrentHashMap<>());
+  }
+
+  // Makes this scope and the ones enclosing it safe to share with a task about to be spawned. Only
+  // the spawning thread can see a scope that isn't shared yet, so it can swap the map in place.
+  void share() {
+    for (var env = this; !(env.values instanceof ConcurrentHashMap); env = env.up.orElseThrow()) {
+      env.values = new ConcurrentHashMap<>(env.values);
+      if (env.up.isEmpty()) return;
+    }
   }
 
   public void define(String name, Value value) {
@@ -35,6 +60,18 @@ public class Environment {
     return Optional.empty();
   }
 
+  Optional<Environment> enclosing() {
+    return up;
+  }
+
+  Collection<Value> values() {
+    return values.values();
+  }
+
+  Map<String, Value> bindings() {
+    return Collections.unmodifiableMap(values);
+  }
+
   private Environment up(int depth) {
     var env = this;
     for (int i = 0; i < depth; i++) {
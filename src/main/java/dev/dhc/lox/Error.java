@@ -23,6 +23,20 @@ public sealed abstract class Error extends RuntimeException {
     }
   }
 
+  // An execution ran out of one of its budgets.
+  public static final class BudgetError extends Error {
+    public BudgetError(int line, String message) {
+      super(Status.BUDGET_EXHAUSTED, String.format("%s\n[line %d]", message, line));
+    }
+  }
+
+  // A snapshot image can't be written or read.
+  public static final class SnapshotError extends Error {
+    public SnapshotError(String message) {
+      super(Status.FAILURE, message);
+    }
+  }
+
   public static final class RuntimeError extends Error {
     public RuntimeError(int line, String message) {
       super(Status.RUNTIME_ERROR, String.format("%s\n[line %d]", message, line));
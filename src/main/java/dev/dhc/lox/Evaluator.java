@@ -1,5 +1,6 @@
 package dev.dhc.lox;
 
+import dev.dhc.lox.AstNode.ArgExpr;
 import dev.dhc.lox.AstNode.AssignExpr;
 import dev.dhc.lox.AstNode.BinOp;
 import dev.dhc.lox.AstNode.BinaryExpr;
@@ -7,12 +8,20 @@ import dev.dhc.lox.AstNode.BlockStmt;
 import dev.dhc.lox.AstNode.BoolExpr;
 import dev.dhc.lox.AstNode.CallExpr;
 import dev.dhc.lox.AstNode.ClassDecl;
+import dev.dhc.lox.AstNode.ConstExpr;
+import dev.dhc.lox.AstNode.CounterLoopStmt;
 import dev.dhc.lox.AstNode.Expr;
 import dev.dhc.lox.AstNode.ExprStmt;
+import dev.dhc.lox.AstNode.ForEachStmt;
 import dev.dhc.lox.AstNode.FunDecl;
 import dev.dhc.lox.AstNode.GetExpr;
 import dev.dhc.lox.AstNode.Grouping;
+import dev.dhc.lox.AstNode.HoistedExpr;
 import dev.dhc.lox.AstNode.IfElseStmt;
+import dev.dhc.lox.AstNode.ImportStmt;
+import dev.dhc.lox.AstNode.InlineExpr;
+import dev.dhc.lox.AstNode.LoopStmt;
+import dev.dhc.lox.AstNode.MemoFunDecl;
 import dev.dhc.lox.AstNode.NilExpr;
 import dev.dhc.lox.AstNode.NumExpr;
 import dev.dhc.lox.AstNode.PrintStmt;
@@ -31,44 +40,172 @@ import dev.dhc.lox.AstNode.WhileStmt;
 import dev.dhc.lox.Error.RuntimeError;
 import dev.dhc.lox.Value.BoolValue;
 import dev.dhc.lox.Value.FunctionType;
+import dev.dhc.lox.Value.LoxBoundFunction;
 import dev.dhc.lox.Value.LoxCallable;
 import dev.dhc.lox.Value.LoxClass;
 import dev.dhc.lox.Value.LoxFunction;
+import dev.dhc.lox.Value.LoxList;
 import dev.dhc.lox.Value.LoxInstance;
+import dev.dhc.lox.Value.LoxIterator;
+import dev.dhc.lox.Value.LoxMemoFunction;
 import dev.dhc.lox.Value.LoxNativeFunction;
 import dev.dhc.lox.Value.NilValue;
 import dev.dhc.lox.Value.NumValue;
+import dev.dhc.lox.Value.RangeIterator;
 import dev.dhc.lox.Value.StrValue;
-import java.io.PrintStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
-import java.util.function.BiFunction;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
+// The state of one execution of a program: its globals, current scope and runtime bookkeeping. An
+// evaluator must be confined to one thread, but since programs are immutable, any number of them
+// can run the same Program concurrently.
 public class Evaluator {
   private static final Value NIL = new NilValue();
-  private final PrintStream out;
-  private final Environment globals = new Environment();
-  private Environment env = globals;
+  // compiled modules, shared by every evaluator in the process
+  static final ProgramCache MODULES = new ProgramCache();
+  private final OutputSink out;
+  private final Stats stats;
+  // null unless profiling
+  private final Profiler.Frames frames;
+  private final Environment globals;
+  private Environment env;
+  // argument values of the innermost inlined call being evaluated
+  private Value[] inlineArgs = new Value[0];
+  // values of the hoisted expressions of the innermost running loop
+  private Value[] hoisted = new Value[0];
+  private final Budget.Meter meter;
+  private final Natives.Streams streams;
+  // modules already run in the globals, by real path
+  private final Set<Path> imported;
+  // statements and calls left until the next checkpoint
+  private long fuel;
+  // bytes that may still be allocated before asking the meter for more
+  private long allowance;
+  // line of the innermost native call or for loop, where strings made by natives are reported
+  private int callLine = 0;
 
-  public Evaluator(PrintStream out) {
+  // rough sizes of runtime objects, for allocation budgets
+  static final long ENVIRONMENT_BYTES = 160;
+  static final long FUNCTION_BYTES = 40;
+  static final long INSTANCE_BYTES = 64;
+  static final long STRING_BYTES = 56;
+  static final long LIST_BYTES = 96;
+  static final long MAP_BYTES = 112;
+
+  public Evaluator(OutputSink out) {
+    this(out, Stats.NONE);
+  }
+
+  public Evaluator(OutputSink out, Stats stats) {
+    this(out, stats, null);
+  }
+
+  Evaluator(OutputSink out, Stats stats, Profiler.Frames frames) {
+    this(out, stats, frames, new Budget.Meter(Budget.UNLIMITED, Optional.empty()));
+  }
+
+  Evaluator(OutputSink out, Stats stats, Profiler.Frames frames, Budget.Meter meter) {
+    this(out, InputStream.nullInputStream(), stats, frames, meter);
+  }
+
+  Evaluator(OutputSink out, InputStream in, Stats stats, Profiler.Frames frames, Budget.Meter meter) {
+    this(out, stats, frames, meter, Environment.globals(), new Natives.Streams(in),
+        ConcurrentHashMap.newKeySet());
+    Natives.define(globals, streams);
+    if (stats instanceof Stats.Heap heap) {
+      heap.track(this);
+      globals.define("heapDump", new LoxNativeFunction(0, (_, _) -> {
+        out.flush();
+        heap.reportLive();
+        return NIL;
+      }));
+    }
+  }
+
+  private Evaluator(OutputSink out, Stats stats, Profiler.Frames frames, Budget.Meter meter,
+                    Environment globals, Natives.Streams streams, Set<Path> imported) {
     this.out = out;
-    globals.define(
-        "clock",
-        new LoxNativeFunction(0, (_, _) ->
-            new NumValue((double) System.currentTimeMillis() / 1000.0)));
+    this.streams = streams;
+    this.imported = imported;
+    this.stats = stats;
+    this.frames = frames;
+    this.meter = meter;
+    this.fuel = meter.fuel();
+    this.allowance = meter.allowance();
+    this.globals = globals;
+    this.env = globals;
   }
 
-  private RuntimeError error(Token tok, String format, Object... args) {
-    return new RuntimeError(tok.line(), String.format(format, args));
+  // An evaluator for a task spawned by this one, sharing its globals, streams, imports, budget and
+  // scheduler.
+  Evaluator fork() {
+    return new Evaluator(out, stats, null, meter.fork(), globals, streams, imported);
   }
 
-  private record Pair<T, U>(T t, U u) {
-    <V> V reduce(BiFunction<T, U, V> f) {
-      return f.apply(t, u);
+  // Calls f as the task of a forked evaluator, in a slot of the scheduler if there is one.
+  Value runTask(LoxCallable f) {
+    meter.enter();
+    try {
+      return f.call(this, List.of());
+    } finally {
+      meter.exit(fuel, allowance);
     }
   }
 
+  Budget.Meter meter() {
+    return meter;
+  }
+
+  Environment globals() {
+    return globals;
+  }
+
+  Set<Path> imported() {
+    return imported;
+  }
+
+  Stats stats() {
+    return stats;
+  }
+
+  Environment environment() {
+    return env;
+  }
+
+  // Counts an allocation towards the budget, which is checked by the next allocation with a line.
+  void allocate(long bytes) {
+    allowance -= bytes;
+  }
+
+  void allocate(int line, long bytes) {
+    allowance -= bytes;
+    if (allowance < 0) allowance = meter.overdraw(line, -allowance);
+  }
+
+  private void consumeFuel(int line) {
+    if (--fuel < 0) fuel = meter.checkpoint(line) - 1;
+  }
+
+  private Environment newEnvironment(int line, Environment up) {
+    stats.environment(line);
+    allocate(line, ENVIRONMENT_BYTES);
+    return new Environment(up);
+  }
+
+  private RuntimeError error(Token tok, String format, Object... args) {
+    return new RuntimeError(tok.line(), String.format(format, args));
+  }
+
+  private record Pair<T, U>(T t, U u) {}
+
   private Pair<Value, Value> evaluate(Expr lhs, Expr rhs) {
     return new Pair<>(evaluate(lhs), evaluate(rhs));
   }
@@ -94,7 +231,52 @@ public class Evaluator {
     };
   }
 
-  private boolean isTruthy(Value v) {
+  private static boolean isEqual(Value lhs, Value rhs) {
+    // interned strings and shared constants are usually identical
+    return lhs == rhs || lhs.equals(rhs);
+  }
+
+  // The operators that take only numbers.
+  private static Value numeric(BinOp op, double lhs, double rhs) {
+    return switch (op) {
+      case MINUS -> new NumValue(lhs - rhs);
+      case SLASH -> new NumValue(lhs / rhs);
+      case STAR -> new NumValue(lhs * rhs);
+      case GREATER -> new BoolValue(lhs > rhs);
+      case GREATER_EQUAL -> new BoolValue(lhs >= rhs);
+      case LESS -> new BoolValue(lhs < rhs);
+      case LESS_EQUAL -> new BoolValue(lhs <= rhs);
+      default -> throw new IllegalArgumentException("not a numeric operator: " + op);
+    };
+  }
+
+  // Constant folding for the Optimizer: the value the operator would produce at run time, or empty
+  // where it would fail, so that the error is still reported when the expression runs.
+  static Optional<Value> fold(UnaryOp op, Value v) {
+    return switch (op) {
+      case BANG -> Optional.of(new BoolValue(!isTruthy(v)));
+      case MINUS -> v instanceof NumValue(double value) ? Optional.of(new NumValue(-value)) : Optional.empty();
+    };
+  }
+
+  static Optional<Value> fold(BinOp op, Value lhs, Value rhs) {
+    return switch (op) {
+      case PLUS -> switch (new Pair<>(lhs, rhs)) {
+        case Pair(NumValue left, NumValue right) -> Optional.of(new NumValue(left.value() + right.value()));
+        case Pair(StrValue left, StrValue right) -> Optional.of(new StrValue(left.value() + right.value()));
+        default -> Optional.empty();
+      };
+      case BANG_EQUAL -> Optional.of(new BoolValue(!isEqual(lhs, rhs)));
+      case EQUAL_EQUAL -> Optional.of(new BoolValue(isEqual(lhs, rhs)));
+      case AND -> Optional.of(!isTruthy(lhs) ? lhs : rhs);
+      case OR -> Optional.of(isTruthy(lhs) ? lhs : rhs);
+      default -> lhs instanceof NumValue(double left) && rhs instanceof NumValue(double right)
+          ? Optional.of(numeric(op, left, right))
+          : Optional.empty();
+    };
+  }
+
+  static boolean isTruthy(Value v) {
     return switch (v) {
       case NilValue() -> false;
       case BoolValue(boolean value) -> value;
@@ -103,8 +285,12 @@ public class Evaluator {
   }
 
   public void run(Program program) {
-    for (final var stmt : program.stmts()) {
-      execute(stmt);
+    try {
+      for (final var stmt : program.stmts()) {
+        execute(stmt);
+      }
+    } finally {
+      streams.close();
     }
   }
 
@@ -121,14 +307,36 @@ public class Evaluator {
   }
 
   public Value call(LoxFunction f, Environment closure, List<Value> args) {
-    final var env = new Environment(closure);
+    if (!Events.recording()) return invoke(f, closure, args);
+    final var event = new Events.Call();
+    if (!event.isEnabled()) return invoke(f, closure, args);
+    event.begin();
+    try {
+      return invoke(f, closure, args);
+    } finally {
+      if (event.shouldCommit()) {
+        event.function = f.name();
+        event.className = f.owner().orElse(null);
+        event.line = f.line();
+        event.commit();
+      }
+    }
+  }
+
+  private Value invoke(LoxFunction f, Environment closure, List<Value> args) {
+    final var env = newEnvironment(f.line(), closure);
     for (int i = 0; i < args.size(); i++) {
       env.define(f.params().get(i), args.get(i));
     }
+    consumeFuel(f.line());
+    if (frames != null) frames.push(f);
     try {
       executeBlock(f.body(), env);
     } catch (Return retvrn) {
+      stats.unwind();
       return retvrn.result;
+    } finally {
+      if (frames != null) frames.pop();
     }
     return NIL;
   }
@@ -142,13 +350,15 @@ public class Evaluator {
   }
 
   public void execute(Stmt stmt) {
+    stats.statement();
+    consumeFuel(stmt.tok().line());
     switch (stmt) {
       case ExprStmt(_, Expr e) -> evaluate(e);
       case PrintStmt(_, Expr e) -> out.println(evaluate(e));
       case VarDecl(_, var name, Optional<Expr> init) ->
           env.define(name.cargo(), init.map(this::evaluate).orElse(NIL));
-      case BlockStmt(_, List<Stmt> stmts) ->
-          executeBlock(stmts, new Environment(env));
+      case BlockStmt(Token tok, List<Stmt> stmts) ->
+          executeBlock(stmts, newEnvironment(tok.line(), env));
       case IfElseStmt(_, Expr cond, Stmt conseq, Optional<Stmt> alt) -> {
         if (isTruthy(evaluate(cond))) execute(conseq);
         else alt.ifPresent(this::execute);
@@ -156,10 +366,45 @@ public class Evaluator {
       case WhileStmt(_, Expr cond, Stmt body) -> {
         while (isTruthy(evaluate(cond))) execute(body);
       }
+      case LoopStmt loop -> {
+        final var prevHoisted = enterLoop(loop.slots());
+        try {
+          if (loop.reuseScope() && loop.body() instanceof BlockStmt(_, List<Stmt> stmts)) {
+            final var scope = newEnvironment(loop.tok().line(), env);
+            while (isTruthy(evaluate(loop.cond()))) executeBlock(stmts, scope);
+          } else {
+            while (isTruthy(evaluate(loop.cond()))) execute(loop.body());
+          }
+        } finally {
+          hoisted = prevHoisted;
+        }
+      }
+      case ForEachStmt loop -> executeForEach(loop);
+      case ImportStmt(Token tok, String name, String path) -> importModule(tok, name, path);
+      case CounterLoopStmt loop -> {
+        final var prevHoisted = enterLoop(loop.slots());
+        try {
+          executeCounterLoop(loop);
+        } finally {
+          hoisted = prevHoisted;
+        }
+      }
       case FunDecl(_, var name, var params, List<Stmt> body) -> {
-        final var f = new LoxFunction(name.cargo(), env, cargo(params), body, FunctionType.FUNCTION);
+        stats.closure(name.line());
+        allocate(name.line(), FUNCTION_BYTES);
+        final var f = new LoxFunction(
+            name.cargo(), Optional.empty(), name.line(), env, cargo(params), body, FunctionType.FUNCTION);
         env.define(name.cargo(), f);
       }
+      case MemoFunDecl(_, FunDecl(_, var name, var params, List<Stmt> body), int capacity) -> {
+        stats.closure(name.line());
+        allocate(name.line(), FUNCTION_BYTES);
+        final var f = new LoxFunction(
+            name.cargo(), Optional.empty(), name.line(), env, cargo(params), body, FunctionType.FUNCTION);
+        final var cache = new Memoizer.Cache(name.cargo(), capacity);
+        stats.memo(cache);
+        env.define(name.cargo(), new LoxMemoFunction(f, cache));
+      }
       case ReturnStmt(_, Expr result) -> throw new Return(evaluate(result));
       case ClassDecl(_, Token className, Optional<VarExpr> superclassName, List<FunDecl> methodDecls) -> {
         var superclassE = superclassName.map(this::evaluate);
@@ -167,14 +412,18 @@ public class Evaluator {
           throw error(className, "Superclass must be a class.");
         }
         var superclass = superclassE.map(sc -> (LoxClass) sc);
-        env.define(className.cargo(), null);
+        env.define(className.cargo(), NIL);
         var prev = env;
         superclass.ifPresent(sc -> {
-          this.env = new Environment(prev);
+          this.env = newEnvironment(className.line(), prev);
           this.env.define("super", sc);
         });
         var methods = methodDecls.stream()
-            .map(methodDecl -> methodFunction(env, methodDecl))
+            .map(methodDecl -> {
+              stats.closure(methodDecl.name().line());
+              allocate(methodDecl.name().line(), FUNCTION_BYTES);
+              return methodFunction(env, className.cargo(), methodDecl);
+            })
             .collect(Collectors.toMap(LoxFunction::name, id -> id));
         var klass = new LoxClass(className.cargo(), superclass, methods);
         superclass.ifPresent(_ -> this.env = prev);
@@ -183,9 +432,98 @@ public class Evaluator {
     }
   }
 
-  private static LoxFunction methodFunction(Environment env, FunDecl method) {
+  private Value[] enterLoop(int slots) {
+    final var prev = hoisted;
+    if (slots > 0) hoisted = new Value[slots];
+    return prev;
+  }
+
+  private void executeCounterLoop(CounterLoopStmt loop) {
+    final var counter = loop.counter();
+    final var line = loop.tok().line();
+    final var scope = loop.reuseScope() ? newEnvironment(line, env) : null;
+    var value = evaluate(counter);
+    while (true) {
+      // same evaluation order and error as the `counter op limit` condition
+      final var limit = evaluate(loop.limit());
+      if (!(value instanceof NumValue(double i) && limit instanceof NumValue(double n))) {
+        throw error(counter.tok(), "Operands must be numbers.");
+      }
+      final var more = switch (loop.op()) {
+        case LESS -> i < n;
+        case LESS_EQUAL -> i <= n;
+        case GREATER -> i > n;
+        case GREATER_EQUAL -> i >= n;
+        default -> throw new AssertionError(loop.op());
+      };
+      if (!more) return;
+      executeBlock(loop.body(), scope != null ? scope : newEnvironment(line, env));
+      value = assign(counter.tok(), counter.scopeDepth(), counter.name(), new NumValue(i + loop.step()));
+    }
+  }
+
+  // Runs a module in the globals, unless it was already imported.
+  private void importModule(Token tok, String name, String path) {
+    final Program module;
+    try {
+      final var file = Paths.get(path).toRealPath();
+      if (!imported.add(file)) return;
+      module = MODULES.get(file);
+    } catch (IOException e) {
+      throw error(tok, "Can't read module '%s'.", name);
+    }
+    final var prev = env;
+    env = globals;
+    try {
+      for (var stmt : module.stmts()) execute(stmt);
+    } finally {
+      env = prev;
+    }
+  }
+
+  private void executeForEach(ForEachStmt loop) {
+    final var line = loop.tok().line();
+    final var iterable = evaluate(loop.iterable());
+    final var iterator = LoxIterator.of(iterable).orElseThrow(() ->
+        error(loop.iterable().tok(), "Can only iterate over iterators, lists and readers."));
+    final var name = loop.name().cargo();
+    final var prev = env;
+    final var scope = newEnvironment(line, env);
+    final var reused = loop.reuseScope() ? newEnvironment(line, scope) : null;
+    try {
+      env = scope;
+      if (iterator instanceof RangeIterator range) {
+        while (range.hasNext()) {
+          scope.define(name, new NumValue(range.nextNumber()));
+          executeForEachBody(loop, reused);
+        }
+      } else {
+        callLine = line;
+        for (var value = iterator.next(this); value != null; value = iterator.next(this)) {
+          scope.define(name, value);
+          executeForEachBody(loop, reused);
+          callLine = line;
+        }
+      }
+    } catch (Natives.NativeError e) {
+      throw error(loop.tok(), "%s", e.getMessage());
+    } finally {
+      env = prev;
+    }
+  }
+
+  private void executeForEachBody(ForEachStmt loop, Environment reused) {
+    if (reused != null && loop.body() instanceof BlockStmt(_, List<Stmt> stmts)) {
+      executeBlock(stmts, reused);
+    } else {
+      execute(loop.body());
+    }
+  }
+
+  private static LoxFunction methodFunction(Environment env, String className, FunDecl method) {
     return new LoxFunction(
-        method.name().cargo(), env, cargo(method.params()), method.body(),
+        method.name().cargo(), Optional.of(className), method.name().line(), env,
+        cargo(method.params()), method.body(),
         method.name().cargo().equals("init") ? FunctionType.INITIALIZER : FunctionType.FUNCTION);
   }
 
@@ -203,21 +541,61 @@ public class Evaluator {
         : globals.get(name).orElseThrow(() -> undefined(at));
   }
 
-  private Value assign(AssignExpr varExpr, String name, Value value) {
-    return varExpr.scopeDepth() >= 0
-        ? env.assignAt(varExpr.scopeDepth(), name, value)
-        : globals.assign(name, value).orElseThrow(() -> undefined(varExpr.tok()));
+  private Value assign(Token at, int depth, String name, Value value) {
+    return depth >= 0
+        ? env.assignAt(depth, name, value)
+        : globals.assign(name, value).orElseThrow(() -> undefined(at));
+  }
+
+  // Reports a string made by a native to --heap.
+  void madeString(String s) {
+    stats.string(callLine, s.length());
+  }
+
+  // Bound methods return new strings, or new lists of them from split.
+  private void madeStrings(Value result) {
+    switch (result) {
+      case StrValue(String s) -> madeString(s);
+      case LoxList list -> {
+        for (int i = 0; i < list.size(); i++) {
+          if (list.get(i) instanceof StrValue(String s)) madeString(s);
+        }
+      }
+      default -> {}
+    }
+  }
+
+  // Calls a bound Java method with the argument values directly, in the same order and with the
+  // same errors as other calls.
+  private Value callBound(Token tok, LoxBoundFunction f, List<Expr> args) {
+    final var n = args.size();
+    final var a = n > 0 ? evaluate(args.get(0)) : null;
+    final var b = n > 1 ? evaluate(args.get(1)) : null;
+    final var c = n > 2 ? evaluate(args.get(2)) : null;
+    if (f.arity() != n) throw error(tok, "Expected %d arguments but got %d.", f.arity(), n);
+    stats.call();
+    try {
+      final var result = f.invoke(a, b, c);
+      if (stats instanceof Stats.Heap) {
+        callLine = tok.line();
+        madeStrings(result);
+      }
+      return result;
+    } catch (Natives.NativeError e) {
+      throw error(tok, "%s", e.getMessage());
+    }
   }
 
   public Value evaluate(Expr expr) {
     return switch (expr) {
       case BoolExpr(_, boolean value) -> new BoolValue(value);
       case StrExpr(_, String value) -> new StrValue(value);
+      case ConstExpr(_, Value value) -> value;
       case NumExpr(_, double value) -> new NumValue(value);
       case NilExpr(_) -> new NilValue();
       case Grouping(_, Expr e) -> evaluate(e);
       case VarExpr e -> lookup(e.tok(), e.scopeDepth(), e.tok().cargo());
-      case AssignExpr e -> assign(e, e.name(), evaluate(e.e()));
+      case AssignExpr e -> assign(e.tok(), e.scopeDepth(), e.name(), evaluate(e.e()));
       case UnaryExpr(_, UnaryOp op, Expr e) -> switch (op) {
         case BANG -> new BoolValue(!isTruthy(evaluate(e)));
         case MINUS -> new NumValue(-asNumber(e));
@@ -225,18 +603,20 @@ public class Evaluator {
       case BinaryExpr(Token tok, Expr left, BinOp op, Expr right) -> switch (op) {
         case PLUS -> switch (evaluate(left, right)) {
           case Pair(NumValue lhs, NumValue rhs) -> new NumValue(lhs.value() + rhs.value());
-          case Pair(StrValue lhs, StrValue rhs) -> new StrValue(lhs.value() + rhs.value());
+          case Pair(StrValue lhs, StrValue rhs) -> {
+            final var value = lhs.value() + rhs.value();
+            stats.concat(tok.line(), value.length());
+            allocate(tok.line(), STRING_BYTES + value.length());
+            yield new StrValue(value);
+          }
           default -> throw error(tok, "Operands must be two numbers or two strings.");
         };
-        case MINUS -> asNumbers(left, right).reduce((lhs, rhs) -> new NumValue(lhs - rhs));
-        case SLASH -> asNumbers(left, right).reduce((lhs, rhs) -> new NumValue(lhs / rhs));
-        case STAR -> asNumbers(left, right).reduce((lhs, rhs) -> new NumValue(lhs * rhs));
-        case GREATER -> asNumbers(left, right).reduce((lhs, rhs) -> new BoolValue(lhs > rhs));
-        case GREATER_EQUAL -> asNumbers(left, right).reduce((lhs, rhs) -> new BoolValue(lhs >= rhs));
-        case LESS -> asNumbers(left, right).reduce((lhs, rhs) -> new BoolValue(lhs < rhs));
-        case LESS_EQUAL -> asNumbers(left, right).reduce((lhs, rhs) -> new BoolValue(lhs <= rhs));
-        case BANG_EQUAL -> new BoolValue(!evaluate(left).equals(evaluate(right)));
-        case EQUAL_EQUAL -> new BoolValue(evaluate(left).equals(evaluate(right)));
+        case MINUS, SLASH, STAR, GREATER, GREATER_EQUAL, LESS, LESS_EQUAL -> {
+          final var operands = asNumbers(left, right);
+          yield numeric(op, operands.t(), operands.u());
+        }
+        case BANG_EQUAL -> new BoolValue(!isEqual(evaluate(left), evaluate(right)));
+        case EQUAL_EQUAL -> new BoolValue(isEqual(evaluate(left), evaluate(right)));
         case AND -> {
           final var lhs = evaluate(left);
           yield !isTruthy(lhs) ? lhs : evaluate(right);
@@ -248,16 +628,55 @@ public class Evaluator {
       };
       case CallExpr(Token tok, Expr callee, List<Expr> args) -> {
         final var f = asCallable(callee);
-        final var a = args.stream().map(this::evaluate).toList();
+        if (f instanceof LoxBoundFunction bound && args.size() <= LoxBoundFunction.MAX_ARITY) {
+          yield callBound(tok, bound, args);
+        }
+        final var values = new Value[args.size()];
+        for (int i = 0; i < values.length; i++) {
+          values[i] = evaluate(args.get(i));
+        }
+        final var a = Arrays.asList(values);
         if (f.arity() != a.size()) {
           throw error(tok, "Expected %d arguments but got %d.", f.arity(), a.size());
         }
-        yield f.call(this, a);
+        stats.call();
+        callLine = tok.line();
+        try {
+          yield f.call(this, a);
+        } catch (Natives.NativeError e) {
+          throw error(tok, "%s", e.getMessage());
+        }
+      }
+      case InlineExpr(_, CallExpr call, String name, List<Stmt> body, Expr inlined) -> {
+        // guard: fall back to a real call if the global no longer holds the inlined function
+        if (!(globals.get(name).orElse(null) instanceof LoxFunction f && f.body() == body)) {
+          yield evaluate(call);
+        }
+        final var args = call.arguments();
+        final var values = new Value[args.size()];
+        for (int i = 0; i < values.length; i++) {
+          values[i] = evaluate(args.get(i));
+        }
+        stats.call();
+        consumeFuel(f.line());
+        final var prev = inlineArgs;
+        inlineArgs = values;
+        try {
+          yield evaluate(inlined);
+        } finally {
+          inlineArgs = prev;
+        }
+      }
+      case ArgExpr(_, int index) -> inlineArgs[index];
+      case HoistedExpr(_, Expr e, int slot) -> {
+        final var value = hoisted[slot];
+        yield value != null ? value : (hoisted[slot] = evaluate(e));
       }
       case GetExpr(Token tok, Expr object, Token name) -> {
         final var o = evaluate(object);
         if (o instanceof LoxInstance instance) {
-          yield instance.get(name);
+          stats.property();
+          yield instance.get(this, name);
         }
         throw error(tok, "Only instances have properties.");
       }
@@ -278,7 +697,7 @@ public class Evaluator {
         var method = superclass.findMethod(name);
         yield method
             .orElseThrow(() -> error(tok, String.format("Undefined property '%s'.", name)))
-            .bind(instance);
+            .bind(this, instance);
       }
     };
   }
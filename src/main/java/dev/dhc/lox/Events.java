@@ -0,0 +1,42 @@
+package dev.dhc.lox;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+// Java Flight Recorder events, so that Lox programs can be diagnosed with the usual JFR tooling,
+// e.g. `java -XX:StartFlightRecording=filename=lox.jfr -jar lox.jar FILE`. Loading the event
+// classes starts up JFR, which is slow, so callers check recording() first.
+final class Events {
+  private Events() {}
+
+  // False until a recording has been started, either at launch or later through jcmd.
+  static boolean recording() {
+    return FlightRecorder.isInitialized();
+  }
+
+  @Name("dev.dhc.lox.Phase")
+  @Label("Lox Phase")
+  @Category("Lox")
+  @Description("A compilation or execution phase of a Lox program")
+  @StackTrace(false)
+  static final class Phase extends Event {
+    @Label("Phase") String phase;
+    @Label("Path") String path;
+  }
+
+  @Name("dev.dhc.lox.Call")
+  @Label("Lox Call")
+  @Category("Lox")
+  @Description("A call to a Lox function or method, including initializers")
+  @StackTrace(false)
+  static final class Call extends Event {
+    @Label("Function") String function;
+    @Label("Class") String className;
+    @Label("Line") int line;
+  }
+}
@@ -0,0 +1,91 @@
+package dev.dhc.lox;
+
+import dev.dhc.lox.Value.LoxArray;
+import dev.dhc.lox.Value.LoxClass;
+import dev.dhc.lox.Value.LoxFunction;
+import dev.dhc.lox.Value.LoxInstance;
+import dev.dhc.lox.Value.LoxList;
+import dev.dhc.lox.Value.LoxMap;
+import dev.dhc.lox.Value.StrValue;
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+// Counts the Lox objects reachable from some environments by kind, and by class for instances.
+final class HeapHistogram {
+  private record Row(String kind, long count, long chars) {}
+
+  private final Map<String, long[]> rows = new HashMap<>();
+  private final Set<Object> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+  private final ArrayDeque<Object> pending = new ArrayDeque<>();
+
+  private HeapHistogram() {}
+
+  static void print(PrintStream err, Environment... roots) {
+    final var histogram = new HeapHistogram();
+    for (var root : roots) histogram.visit(root);
+    histogram.walk();
+    final var rows = histogram.rows.entrySet().stream()
+        .map(e -> new Row(e.getKey(), e.getValue()[0], e.getValue()[1]))
+        .sorted((a, b) -> a.count() != b.count()
+            ? Long.compare(b.count(), a.count())
+            : a.kind().compareTo(b.kind()))
+        .toList();
+    err.println(String.format("%-24s %14s %14s", "live objects", "count", "string chars"));
+    for (var row : rows) {
+      err.println(String.format("%-24s %14d %14d", row.kind(), row.count(), row.chars()));
+    }
+  }
+
+  private void visit(Object o) {
+    if (o != null && seen.add(o)) pending.push(o);
+  }
+
+  private void count(String kind, long chars) {
+    final var row = rows.computeIfAbsent(kind, _ -> new long[2]);
+    row[0]++;
+    row[1] += chars;
+  }
+
+  private void walk() {
+    while (!pending.isEmpty()) {
+      switch (pending.pop()) {
+        case Environment env -> {
+          count("environment", 0);
+          env.values().forEach(this::visit);
+          env.enclosing().ifPresent(this::visit);
+        }
+        case LoxInstance instance -> {
+          count(instance.klass().name() + " instance", 0);
+          visit(instance.klass());
+          instance.fields().values().forEach(this::visit);
+        }
+        case LoxFunction f -> {
+          count("function", 0);
+          visit(f.closure());
+        }
+        case LoxClass klass -> {
+          count("class", 0);
+          klass.methods().values().forEach(this::visit);
+          klass.superclass().ifPresent(this::visit);
+        }
+        case StrValue s -> count("string", s.value().length());
+        case LoxArray _ -> count("array", 0);
+        case LoxList list -> {
+          count("list", 0);
+          list.elements().forEach(this::visit);
+        }
+        case LoxMap map -> {
+          count("map", 0);
+          map.keys().forEach(this::visit);
+          map.values().forEach(this::visit);
+        }
+        default -> {}
+      }
+    }
+  }
+}
@@ -0,0 +1,251 @@
+package dev.dhc.lox;
+
+import dev.dhc.lox.AstNode.ArgExpr;
+import dev.dhc.lox.AstNode.AssignExpr;
+import dev.dhc.lox.AstNode.BinOp;
+import dev.dhc.lox.AstNode.BinaryExpr;
+import dev.dhc.lox.AstNode.BlockStmt;
+import dev.dhc.lox.AstNode.BoolExpr;
+import dev.dhc.lox.AstNode.CallExpr;
+import dev.dhc.lox.AstNode.ClassDecl;
+import dev.dhc.lox.AstNode.ConstExpr;
+import dev.dhc.lox.AstNode.CounterLoopStmt;
+import dev.dhc.lox.AstNode.Expr;
+import dev.dhc.lox.AstNode.ExprStmt;
+import dev.dhc.lox.AstNode.ForEachStmt;
+import dev.dhc.lox.AstNode.FunDecl;
+import dev.dhc.lox.AstNode.GetExpr;
+import dev.dhc.lox.AstNode.Grouping;
+import dev.dhc.lox.AstNode.HoistedExpr;
+import dev.dhc.lox.AstNode.IfElseStmt;
+import dev.dhc.lox.AstNode.ImportStmt;
+import dev.dhc.lox.AstNode.InlineExpr;
+import dev.dhc.lox.AstNode.LoopStmt;
+import dev.dhc.lox.AstNode.MemoFunDecl;
+import dev.dhc.lox.AstNode.NilExpr;
+import dev.dhc.lox.AstNode.NumExpr;
+import dev.dhc.lox.AstNode.PrintStmt;
+import dev.dhc.lox.AstNode.Program;
+import dev.dhc.lox.AstNode.ReturnStmt;
+import dev.dhc.lox.AstNode.SetExpr;
+import dev.dhc.lox.AstNode.Stmt;
+import dev.dhc.lox.AstNode.StrExpr;
+import dev.dhc.lox.AstNode.SuperExpr;
+import dev.dhc.lox.AstNode.ThisExpr;
+import dev.dhc.lox.AstNode.UnaryExpr;
+import dev.dhc.lox.AstNode.UnaryOp;
+import dev.dhc.lox.AstNode.VarDecl;
+import dev.dhc.lox.AstNode.VarExpr;
+import dev.dhc.lox.AstNode.WhileStmt;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+// Inlines calls to small global functions of the form `fun f(a, b) { return <expr>; }` where
+// <expr> makes no calls and has no side effects. Only functions that are declared once, never
+// reassigned and only ever called (never used as values) are inlined; the evaluator still
+// checks at each call that the global holds the declared function and makes a real call if not.
+public class Inliner {
+  private static final int MAX_SIZE = 16;
+
+  private final Map<String, Integer> declarations = new HashMap<>();
+  private final Set<String> unstable = new HashSet<>();
+  private final Map<String, Candidate> inlinable = new HashMap<>();
+
+  private record Candidate(FunDecl fun, Expr inlined) {}
+
+  public static Program inline(Program program) {
+    final var inliner = new Inliner();
+    inliner.analyze(program.stmts());
+    if (inliner.inlinable.isEmpty()) return program;
+    return new Program(inliner.rewrite(program.stmts()));
+  }
+
+  private void analyze(List<Stmt> globals) {
+    for (var stmt : globals) {
+      switch (stmt) {
+        case FunDecl(_, Token name, _, _) -> declarations.merge(name.cargo(), 1, Integer::sum);
+        case VarDecl(_, Token name, _) -> declarations.merge(name.cargo(), 1, Integer::sum);
+        case ClassDecl(_, Token name, _, _) -> declarations.merge(name.cargo(), 1, Integer::sum);
+        default -> {}
+      }
+      scan(stmt);
+    }
+    for (var stmt : globals) {
+      if (stmt instanceof FunDecl fun
+          && declarations.get(fun.name().cargo()) == 1
+          && !unstable.contains(fun.name().cargo())) {
+        inlinedBody(fun).ifPresent(e -> inlinable.put(fun.name().cargo(), new Candidate(fun, e)));
+      }
+    }
+  }
+
+  // Records globals that are assigned or used other than as the callee of a call.
+  private void scan(Stmt stmt) {
+    switch (stmt) {
+      case BlockStmt(_, List<Stmt> stmts) -> stmts.forEach(this::scan);
+      case FunDecl(_, _, _, List<Stmt> body) -> body.forEach(this::scan);
+      case IfElseStmt(_, Expr cond, Stmt conseq, Optional<Stmt> alt) -> {
+        scan(cond);
+        scan(conseq);
+        alt.ifPresent(this::scan);
+      }
+      case WhileStmt(_, Expr cond, Stmt body) -> {
+        scan(cond);
+        scan(body);
+      }
+      case ForEachStmt(_, _, Expr iterable, Stmt body, _) -> {
+        scan(iterable);
+        scan(body);
+      }
+      case ClassDecl(_, _, Optional<VarExpr> superclass, List<FunDecl> methods) -> {
+        superclass.ifPresent(this::scan);
+        methods.forEach(this::scan);
+      }
+      case VarDecl(_, _, Optional<Expr> init) -> init.ifPresent(this::scan);
+      case ExprStmt(_, Expr expr) -> scan(expr);
+      case PrintStmt(_, Expr expr) -> scan(expr);
+      case ReturnStmt(_, Expr expr) -> scan(expr);
+      case ImportStmt(_, _, _) -> {}
+      case LoopStmt(_, _, _, _, _), CounterLoopStmt(_, _, _, _, _, _, _, _) ->
+          throw new AssertionError("loops are optimized after inlining");
+      case MemoFunDecl(_, _, _) -> throw new AssertionError("functions are memoized after inlining");
+    }
+  }
+
+  private void scan(Expr expr) {
+    switch (expr) {
+      case VarExpr(_, String name, int depth) -> {
+        if (depth < 0) unstable.add(name);
+      }
+      case AssignExpr(_, String name, int depth, Expr e) -> {
+        if (depth < 0) unstable.add(name);
+        scan(e);
+      }
+      case CallExpr(_, Expr callee, List<Expr> args) -> {
+        if (!(callee instanceof VarExpr(_, _, int depth) && depth < 0)) scan(callee);
+        args.forEach(this::scan);
+      }
+      case BinaryExpr(_, Expr left, _, Expr right) -> {
+        scan(left);
+        scan(right);
+      }
+      case UnaryExpr(_, _, Expr e) -> scan(e);
+      case Grouping(_, Expr e) -> scan(e);
+      case GetExpr(_, Expr object, _) -> scan(object);
+      case SetExpr(_, Expr object, _, Expr value) -> {
+        scan(object);
+        scan(value);
+      }
+      case InlineExpr(_, CallExpr call, _, _, _) -> scan(call);
+      case BoolExpr(_, _), NumExpr(_, _), StrExpr(_, _), NilExpr(_), ConstExpr(_, _),
+           ThisExpr(_, _), SuperExpr(_, _, _), ArgExpr(_, _), HoistedExpr(_, _, _) -> {}
+    }
+  }
+
+  // The function's return expression with parameters replaced by argument slots, if the
+  // function is small enough and its body is a single side-effect free return.
+  private static Optional<Expr> inlinedBody(FunDecl fun) {
+    if (fun.body().size() != 1 || !(fun.body().getFirst() instanceof ReturnStmt(_, Expr e))) {
+      return Optional.empty();
+    }
+    final var params = fun.params().stream().map(Token::cargo).toList();
+    if (size(e) > MAX_SIZE) return Optional.empty();
+    return substitute(e, params);
+  }
+
+  private static int size(Expr expr) {
+    return switch (expr) {
+      case BinaryExpr(_, Expr left, _, Expr right) -> 1 + size(left) + size(right);
+      case UnaryExpr(_, _, Expr e) -> 1 + size(e);
+      case Grouping(_, Expr e) -> size(e);
+      case GetExpr(_, Expr object, _) -> 1 + size(object);
+      default -> 1;
+    };
+  }
+
+  private static Optional<Expr> substitute(Expr expr, List<String> params) {
+    return switch (expr) {
+      case ConstExpr(_, _), BoolExpr(_, _), NumExpr(_, _), StrExpr(_, _), NilExpr(_) ->
+          Optional.of(expr);
+      // inside the function's only scope, depth 0 is always a parameter
+      case VarExpr(Token tok, String name, int depth) when depth == 0 ->
+          Optional.of(new ArgExpr(tok, params.indexOf(name)));
+      case VarExpr(_, _, int depth) when depth < 0 -> Optional.of(expr);
+      case BinaryExpr(Token tok, Expr left, BinOp op, Expr right) ->
+          substitute(left, params).flatMap(lhs ->
+              substitute(right, params).map(rhs -> new BinaryExpr(tok, lhs, op, rhs)));
+      case UnaryExpr(Token tok, UnaryOp op, Expr e) ->
+          substitute(e, params).map(e2 -> new UnaryExpr(tok, op, e2));
+      case Grouping(Token tok, Expr e) -> substitute(e, params).map(e2 -> new Grouping(tok, e2));
+      case GetExpr(Token tok, Expr object, Token name) ->
+          substitute(object, params).map(o -> new GetExpr(tok, o, name));
+      default -> Optional.empty();
+    };
+  }
+
+  private List<Stmt> rewrite(List<Stmt> stmts) {
+    return stmts.stream().map(this::rewrite).toList();
+  }
+
+  private Stmt rewrite(Stmt stmt) {
+    return switch (stmt) {
+      case BlockStmt(Token tok, List<Stmt> stmts) -> new BlockStmt(tok, rewrite(stmts));
+      case FunDecl fun -> rewrite(fun);
+      case IfElseStmt(Token tok, Expr cond, Stmt conseq, Optional<Stmt> alt) ->
+          new IfElseStmt(tok, rewrite(cond), rewrite(conseq), alt.map(this::rewrite));
+      case WhileStmt(Token tok, Expr cond, Stmt body) ->
+          new WhileStmt(tok, rewrite(cond), rewrite(body));
+      case ForEachStmt(Token tok, Token name, Expr iterable, Stmt body, boolean reuseScope) ->
+          new ForEachStmt(tok, name, rewrite(iterable), rewrite(body), reuseScope);
+      case ClassDecl(Token tok, Token name, Optional<VarExpr> superclass, List<FunDecl> methods) ->
+          new ClassDecl(tok, name, superclass, methods.stream().map(this::rewrite).toList());
+      case VarDecl(Token tok, Token name, Optional<Expr> init) ->
+          new VarDecl(tok, name, init.map(this::rewrite));
+      case ExprStmt(Token tok, Expr expr) -> new ExprStmt(tok, rewrite(expr));
+      case PrintStmt(Token tok, Expr expr) -> new PrintStmt(tok, rewrite(expr));
+      case ReturnStmt(Token tok, Expr expr) -> new ReturnStmt(tok, rewrite(expr));
+      case ImportStmt(_, _, _) -> stmt;
+      case LoopStmt(_, _, _, _, _), CounterLoopStmt(_, _, _, _, _, _, _, _) ->
+          throw new AssertionError("loops are optimized after inlining");
+      case MemoFunDecl(_, _, _) -> throw new AssertionError("functions are memoized after inlining");
+    };
+  }
+
+  private FunDecl rewrite(FunDecl fun) {
+    // inlinable bodies contain no calls, so they are kept as is and identify the function
+    final var candidate = inlinable.get(fun.name().cargo());
+    if (candidate != null && candidate.fun() == fun) return fun;
+    return new FunDecl(fun.tok(), fun.name(), fun.params(), rewrite(fun.body()));
+  }
+
+  private Expr rewrite(Expr expr) {
+    return switch (expr) {
+      case CallExpr(Token tok, Expr callee, List<Expr> args) -> {
+        final var call = new CallExpr(tok, rewrite(callee), args.stream().map(this::rewrite).toList());
+        if (callee instanceof VarExpr(_, String name, int depth) && depth < 0) {
+          final var candidate = inlinable.get(name);
+          if (candidate != null && candidate.fun().params().size() == args.size()) {
+            yield new InlineExpr(tok, call, name, candidate.fun().body(), candidate.inlined());
+          }
+        }
+        yield call;
+      }
+      case AssignExpr(Token tok, String name, int depth, Expr e) ->
+          new AssignExpr(tok, name, depth, rewrite(e));
+      case BinaryExpr(Token tok, Expr left, BinOp op, Expr right) ->
+          new BinaryExpr(tok, rewrite(left), op, rewrite(right));
+      case UnaryExpr(Token tok, UnaryOp op, Expr e) -> new UnaryExpr(tok, op, rewrite(e));
+      case Grouping(Token tok, Expr e) -> new Grouping(tok, rewrite(e));
+      case GetExpr(Token tok, Expr object, Token name) -> new GetExpr(tok, rewrite(object), name);
+      case SetExpr(Token tok, Expr object, Token name, Expr value) ->
+          new SetExpr(tok, rewrite(object), name, rewrite(value));
+      case BoolExpr(_, _), NumExpr(_, _), StrExpr(_, _), NilExpr(_), ConstExpr(_, _), VarExpr(_, _, _),
+           ThisExpr(_, _), SuperExpr(_, _, _), InlineExpr(_, _, _, _, _), ArgExpr(_, _),
+           HoistedExpr(_, _, _) -> expr;
+    };
+  }
+}
@@ -0,0 +1,24 @@
+package dev.dhc.lox;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+// Table of canonical strings for identifiers and string literals, so that environment, field and
+// method lookups keyed by them usually succeed on identity. The entries are weak: a string leaves
+// the table with the last program using it, e.g. when the server's ProgramCache replaces a program.
+public final class Interner {
+  private static final Map<String, WeakReference<String>> strings = new WeakHashMap<>();
+
+  private Interner() {}
+
+  public static String intern(String s) {
+    synchronized (strings) {
+      final var ref = strings.get(s);
+      final var canonical = ref != null ? ref.get() : null;
+      if (canonical != null) return canonical;
+      strings.put(s, new WeakReference<>(s));
+      return s;
+    }
+  }
+}
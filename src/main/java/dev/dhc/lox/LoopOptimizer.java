@@ -0,0 +1,384 @@
+package dev.dhc.lox;
+
+import dev.dhc.lox.AstNode.ArgExpr;
+import dev.dhc.lox.AstNode.AssignExpr;
+import dev.dhc.lox.AstNode.BinOp;
+import dev.dhc.lox.AstNode.BinaryExpr;
+import dev.dhc.lox.AstNode.BlockStmt;
+import dev.dhc.lox.AstNode.BoolExpr;
+import dev.dhc.lox.AstNode.CallExpr;
+import dev.dhc.lox.AstNode.ClassDecl;
+import dev.dhc.lox.AstNode.ConstExpr;
+import dev.dhc.lox.AstNode.CounterLoopStmt;
+import dev.dhc.lox.AstNode.Expr;
+import dev.dhc.lox.AstNode.ExprStmt;
+import dev.dhc.lox.AstNode.ForEachStmt;
+import dev.dhc.lox.AstNode.FunDecl;
+import dev.dhc.lox.AstNode.GetExpr;
+import dev.dhc.lox.AstNode.Grouping;
+import dev.dhc.lox.AstNode.HoistedExpr;
+import dev.dhc.lox.AstNode.IfElseStmt;
+import dev.dhc.lox.AstNode.ImportStmt;
+import dev.dhc.lox.AstNode.InlineExpr;
+import dev.dhc.lox.AstNode.LoopStmt;
+import dev.dhc.lox.AstNode.MemoFunDecl;
+import dev.dhc.lox.AstNode.NilExpr;
+import dev.dhc.lox.AstNode.NumExpr;
+import dev.dhc.lox.AstNode.PrintStmt;
+import dev.dhc.lox.AstNode.Program;
+import dev.dhc.lox.AstNode.ReturnStmt;
+import dev.dhc.lox.AstNode.SetExpr;
+import dev.dhc.lox.AstNode.Stmt;
+import dev.dhc.lox.AstNode.StrExpr;
+import dev.dhc.lox.AstNode.SuperExpr;
+import dev.dhc.lox.AstNode.ThisExpr;
+import dev.dhc.lox.AstNode.UnaryExpr;
+import dev.dhc.lox.AstNode.UnaryOp;
+import dev.dhc.lox.AstNode.VarDecl;
+import dev.dhc.lox.AstNode.VarExpr;
+import dev.dhc.lox.AstNode.WhileStmt;
+import dev.dhc.lox.Value.NumValue;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.UnaryOperator;
+
+// Rewrites while loops (including desugared for loops) into LoopStmts and CounterLoopStmts:
+//
+// - in loops that make no calls, only the loop itself and other tasks can change variables, so
+//   expressions over constants and unshared variables the loop never writes are hoisted into
+//   per-loop slots;
+// - block bodies that declare no functions or classes can't be captured, so their
+//   environment is reused across iterations;
+// - counting loops whose body leaves an unshared counter alone test and step it directly.
+public class LoopOptimizer {
+  // names of variables that closures may capture (see captured)
+  private final Set<String> captured;
+
+  private LoopOptimizer(Set<String> captured) {
+    this.captured = captured;
+  }
+
+  public static Program optimize(Program program) {
+    final var captured = new HashSet<String>();
+    program.stmts().forEach(stmt -> captured(stmt, true, false, captured));
+    return new Program(new LoopOptimizer(captured).optimize(program.stmts()));
+  }
+
+  // What a loop's condition and body may do, including any nested loops.
+  private static final class Effects {
+    final Set<String> captured;
+    boolean calls = false;
+    boolean captures = false;
+    // name -> number of assignments and declarations
+    final Map<String, Integer> writes = new HashMap<>();
+
+    Effects(Set<String> captured) {
+      this.captured = captured;
+    }
+
+    // Whether a spawned task could write the variable while the loop runs.
+    boolean isShared(String name, int depth) {
+      return depth < 0 || captured.contains(name);
+    }
+
+    void write(String name) {
+      writes.merge(name, 1, Integer::sum);
+    }
+
+    boolean writes(String name) {
+      return writes.containsKey(name);
+    }
+  }
+
+  // Returns stmts itself if nothing in it changed: function bodies must keep their identity, since
+  // the evaluator checks inlined calls against it.
+  private List<Stmt> optimize(List<Stmt> stmts) {
+    final var optimized = stmts.stream().map(this::optimize).toList();
+    for (int i = 0; i < stmts.size(); i++) {
+      if (optimized.get(i) != stmts.get(i)) return optimized;
+    }
+    return stmts;
+  }
+
+  private Stmt optimize(Stmt stmt) {
+    return switch (stmt) {
+      case WhileStmt(Token tok, Expr cond, Stmt body) -> loop(tok, cond, optimize(body));
+      case ForEachStmt(Token tok, Token name, Expr iterable, Stmt body, _) -> {
+        final var effects = new Effects(captured);
+        scan(body, effects);
+        final var body2 = optimize(body);
+        yield new ForEachStmt(tok, name, iterable, body2, body2 instanceof BlockStmt && !effects.captures);
+      }
+      case BlockStmt(Token tok, List<Stmt> stmts) -> {
+        final var stmts2 = optimize(stmts);
+        yield stmts2 == stmts ? stmt : new BlockStmt(tok, stmts2);
+      }
+      case FunDecl fun -> optimize(fun);
+      case IfElseStmt(Token tok, Expr cond, Stmt conseq, Optional<Stmt> alt) ->
+          new IfElseStmt(tok, cond, optimize(conseq), alt.map(this::optimize));
+      case ClassDecl(Token tok, Token name, Optional<VarExpr> superclass, List<FunDecl> methods) ->
+          new ClassDecl(tok, name, superclass, methods.stream().map(this::optimize).toList());
+      case VarDecl(_, _, _), ExprStmt(_, _), PrintStmt(_, _), ReturnStmt(_, _),
+           LoopStmt(_, _, _, _, _), CounterLoopStmt(_, _, _, _, _, _, _, _), MemoFunDecl(_, _, _),
+           ImportStmt(_, _, _) -> stmt;
+    };
+  }
+
+  private FunDecl optimize(FunDecl fun) {
+    final var body = optimize(fun.body());
+    return body == fun.body() ? fun : new FunDecl(fun.tok(), fun.name(), fun.params(), body);
+  }
+
+  private Stmt loop(Token tok, Expr cond, Stmt body) {
+    final var effects = new Effects(captured);
+    scan(cond, effects);
+    scan(body, effects);
+
+    final var slots = new int[]{0};
+    final UnaryOperator<Expr> hoister = e -> effects.calls ? e : hoist(e, effects, slots);
+    final var cond2 = hoister.apply(cond);
+    final var body2 = hoist(body, hoister);
+    final var reuseScope = body2 instanceof BlockStmt && !effects.captures;
+
+    return counter(cond2, body2, effects)
+        .<Stmt>map(c -> new CounterLoopStmt(tok, c.counter(), c.op(), c.limit(), c.step(), c.body(),
+            reuseScope, slots[0]))
+        .orElseGet(() -> new LoopStmt(tok, cond2, body2, reuseScope, slots[0]));
+  }
+
+  private record Counter(VarExpr counter, BinOp op, Expr limit, double step, List<Stmt> body) {}
+
+  private static Optional<Counter> counter(Expr cond, Stmt body, Effects effects) {
+    if (effects.calls) return Optional.empty();
+    if (!(cond instanceof BinaryExpr(_, VarExpr counter, BinOp op, Expr limit))) return Optional.empty();
+    if (op != BinOp.LESS && op != BinOp.LESS_EQUAL && op != BinOp.GREATER && op != BinOp.GREATER_EQUAL) {
+      return Optional.empty();
+    }
+    if (!(body instanceof BlockStmt(_, List<Stmt> stmts)) || stmts.isEmpty()) return Optional.empty();
+    final var name = counter.name();
+    // the increment must be the only write to the counter, at the end of the body
+    if (effects.writes.getOrDefault(name, 0) != 1 || effects.isShared(name, counter.scopeDepth())) {
+      return Optional.empty();
+    }
+    if (!(stmts.getLast() instanceof ExprStmt(_, AssignExpr(_, String target, int depth,
+        BinaryExpr(_, VarExpr(_, String operand, int operandDepth), BinOp stepOp,
+            ConstExpr(_, NumValue(double step))))))) {
+      return Optional.empty();
+    }
+    // the increment runs in the body's block, one scope below the condition
+    final var expectedDepth = counter.scopeDepth() < 0 ? -1 : counter.scopeDepth() + 1;
+    if (!target.equals(name) || !operand.equals(name)
+        || depth != expectedDepth || operandDepth != expectedDepth
+        || (stepOp != BinOp.PLUS && stepOp != BinOp.MINUS)) {
+      return Optional.empty();
+    }
+    return Optional.of(new Counter(
+        counter, op, limit, stepOp == BinOp.PLUS ? step : -step, stmts.subList(0, stmts.size() - 1)));
+  }
+
+  private static boolean isInvariant(Expr expr, Effects effects) {
+    return switch (expr) {
+      case ConstExpr(_, _) -> true;
+      case VarExpr(_, String name, int depth) -> !effects.writes(name) && !effects.isShared(name, depth);
+      case BinaryExpr(_, Expr left, _, Expr right) ->
+          isInvariant(left, effects) && isInvariant(right, effects);
+      case UnaryExpr(_, _, Expr e) -> isInvariant(e, effects);
+      case Grouping(_, Expr e) -> isInvariant(e, effects);
+      default -> false;
+    };
+  }
+
+  private static Expr hoist(Expr expr, Effects effects, int[] slots) {
+    if (isInvariant(expr, effects) && (expr instanceof BinaryExpr || expr instanceof UnaryExpr)) {
+      return new HoistedExpr(expr.tok(), expr, slots[0]++);
+    }
+    return switch (expr) {
+      case BinaryExpr(Token tok, Expr left, BinOp op, Expr right) ->
+          new BinaryExpr(tok, hoist(left, effects, slots), op, hoist(right, effects, slots));
+      case UnaryExpr(Token tok, UnaryOp op, Expr e) -> new UnaryExpr(tok, op, hoist(e, effects, slots));
+      case Grouping(Token tok, Expr e) -> new Grouping(tok, hoist(e, effects, slots));
+      case AssignExpr(Token tok, String name, int depth, Expr e) ->
+          new AssignExpr(tok, name, depth, hoist(e, effects, slots));
+      case GetExpr(Token tok, Expr object, Token name) ->
+          new GetExpr(tok, hoist(object, effects, slots), name);
+      case SetExpr(Token tok, Expr object, Token name, Expr value) ->
+          new SetExpr(tok, hoist(object, effects, slots), name, hoist(value, effects, slots));
+      // calls disable hoisting; the rest have no subexpressions worth hoisting
+      case CallExpr(_, _, _), InlineExpr(_, _, _, _, _), ConstExpr(_, _), VarExpr(_, _, _),
+           ThisExpr(_, _), SuperExpr(_, _, _), ArgExpr(_, _), HoistedExpr(_, _, _),
+           BoolExpr(_, _), NumExpr(_, _), StrExpr(_, _), NilExpr(_) -> expr;
+    };
+  }
+
+  // Applies the hoister to the expressions evaluated directly by this loop. Nested loops have
+  // their own slots and nested functions may run after the loop, so neither is entered.
+  private static Stmt hoist(Stmt stmt, UnaryOperator<Expr> hoist) {
+    return switch (stmt) {
+      case BlockStmt(Token tok, List<Stmt> stmts) ->
+          new BlockStmt(tok, stmts.stream().map(s -> hoist(s, hoist)).toList());
+      case IfElseStmt(Token tok, Expr cond, Stmt conseq, Optional<Stmt> alt) ->
+          new IfElseStmt(tok, hoist.apply(cond), hoist(conseq, hoist), alt.map(s -> hoist(s, hoist)));
+      case VarDecl(Token tok, Token name, Optional<Expr> init) ->
+          new VarDecl(tok, name, init.map(hoist::apply));
+      case ExprStmt(Token tok, Expr expr) -> new ExprStmt(tok, hoist.apply(expr));
+      case PrintStmt(Token tok, Expr expr) -> new PrintStmt(tok, hoist.apply(expr));
+      case ReturnStmt(Token tok, Expr expr) -> new ReturnStmt(tok, hoist.apply(expr));
+      case WhileStmt(_, _, _), LoopStmt(_, _, _, _, _), CounterLoopStmt(_, _, _, _, _, _, _, _),
+           ForEachStmt(_, _, _, _, _), FunDecl(_, _, _, _), MemoFunDecl(_, _, _), ClassDecl(_, _, _, _),
+           ImportStmt(_, _, _) -> stmt;
+    };
+  }
+
+  private static void scan(Stmt stmt, Effects effects) {
+    switch (stmt) {
+      case BlockStmt(_, List<Stmt> stmts) -> stmts.forEach(s -> scan(s, effects));
+      case IfElseStmt(_, Expr cond, Stmt conseq, Optional<Stmt> alt) -> {
+        scan(cond, effects);
+        scan(conseq, effects);
+        alt.ifPresent(s -> scan(s, effects));
+      }
+      case WhileStmt(_, Expr cond, Stmt body) -> {
+        scan(cond, effects);
+        scan(body, effects);
+      }
+      case LoopStmt(_, Expr cond, Stmt body, _, _) -> {
+        scan(cond, effects);
+        scan(body, effects);
+      }
+      case ForEachStmt(_, Token name, Expr iterable, Stmt body, _) -> {
+        effects.write(name.cargo());
+        scan(iterable, effects);
+        scan(body, effects);
+      }
+      case CounterLoopStmt(_, VarExpr counter, _, Expr limit, _, List<Stmt> body, _, _) -> {
+        effects.write(counter.name());
+        scan(limit, effects);
+        body.forEach(s -> scan(s, effects));
+      }
+      case VarDecl(_, Token name, Optional<Expr> init) -> {
+        effects.write(name.cargo());
+        init.ifPresent(e -> scan(e, effects));
+      }
+      case FunDecl(_, Token name, _, _) -> {
+        // the body only runs when called, and calls are accounted for separately
+        effects.write(name.cargo());
+        effects.captures = true;
+      }
+      case MemoFunDecl(_, FunDecl fun, _) -> scan(fun, effects);
+      case ClassDecl(_, Token name, Optional<VarExpr> superclass, _) -> {
+        effects.write(name.cargo());
+        effects.captures = true;
+        superclass.ifPresent(e -> scan(e, effects));
+      }
+      case ExprStmt(_, Expr expr) -> scan(expr, effects);
+      case PrintStmt(_, Expr expr) -> scan(expr, effects);
+      case ReturnStmt(_, Expr expr) -> scan(expr, effects);
+      case ImportStmt(_, _, _) -> {}
+    }
+  }
+
+  private static void scan(Expr expr, Effects effects) {
+    switch (expr) {
+      case AssignExpr(_, String name, _, Expr e) -> {
+        effects.write(name);
+        scan(e, effects);
+      }
+      case CallExpr(_, Expr callee, List<Expr> args) -> {
+        effects.calls = true;
+        scan(callee, effects);
+        args.forEach(e -> scan(e, effects));
+      }
+      // the inliner only inlines functions that are never reassigned, so unless the global
+      // is still undefined (an error), no code runs that could write variables
+      case InlineExpr(_, CallExpr call, _, _, _) -> call.arguments().forEach(e -> scan(e, effects));
+      case BinaryExpr(_, Expr left, _, Expr right) -> {
+        scan(left, effects);
+        scan(right, effects);
+      }
+      case UnaryExpr(_, _, Expr e) -> scan(e, effects);
+      case Grouping(_, Expr e) -> scan(e, effects);
+      case GetExpr(_, Expr object, _) -> scan(object, effects);
+      case SetExpr(_, Expr object, _, Expr value) -> {
+        scan(object, effects);
+        scan(value, effects);
+      }
+      case HoistedExpr(_, Expr e, _) -> scan(e, effects);
+      case ConstExpr(_, _), VarExpr(_, _, _), ThisExpr(_, _), SuperExpr(_, _, _), ArgExpr(_, _),
+           BoolExpr(_, _), NumExpr(_, _), StrExpr(_, _), NilExpr(_) -> {}
+    }
+  }
+
+  // Collects the names of the local variables that functions declared in a block or in another
+  // function refer to, any of which may be captured. Going by name overestimates, but is enough for
+  // a function of one's own to keep its locals hoistable.
+  private static void captured(Stmt stmt, boolean top, boolean nested, Set<String> names) {
+    switch (stmt) {
+      case FunDecl(_, _, _, List<Stmt> body) -> body.forEach(s -> captured(s, false, nested || !top, names));
+      case MemoFunDecl(_, FunDecl fun, _) -> captured(fun, top, nested, names);
+      case ClassDecl(_, _, _, List<FunDecl> methods) -> methods.forEach(m -> captured(m, top, nested, names));
+      case BlockStmt(_, List<Stmt> stmts) -> stmts.forEach(s -> captured(s, false, nested, names));
+      case IfElseStmt(_, Expr cond, Stmt conseq, Optional<Stmt> alt) -> {
+        captured(cond, nested, names);
+        captured(conseq, false, nested, names);
+        alt.ifPresent(s -> captured(s, false, nested, names));
+      }
+      case WhileStmt(_, Expr cond, Stmt body) -> {
+        captured(cond, nested, names);
+        captured(body, false, nested, names);
+      }
+      case LoopStmt(_, Expr cond, Stmt body, _, _) -> {
+        captured(cond, nested, names);
+        captured(body, false, nested, names);
+      }
+      case CounterLoopStmt(_, VarExpr counter, _, Expr limit, _, List<Stmt> body, _, _) -> {
+        captured(counter, nested, names);
+        captured(limit, nested, names);
+        body.forEach(s -> captured(s, false, nested, names));
+      }
+      case ForEachStmt(_, _, Expr iterable, Stmt body, _) -> {
+        captured(iterable, nested, names);
+        captured(body, false, nested, names);
+      }
+      case VarDecl(_, _, Optional<Expr> init) -> init.ifPresent(e -> captured(e, nested, names));
+      case ExprStmt(_, Expr expr) -> captured(expr, nested, names);
+      case PrintStmt(_, Expr expr) -> captured(expr, nested, names);
+      case ReturnStmt(_, Expr expr) -> captured(expr, nested, names);
+      case ImportStmt(_, _, _) -> {}
+    }
+  }
+
+  private static void captured(Expr expr, boolean nested, Set<String> names) {
+    switch (expr) {
+      case VarExpr(_, String name, int depth) -> {
+        if (nested && depth >= 0) names.add(name);
+      }
+      case AssignExpr(_, String name, int depth, Expr e) -> {
+        if (nested && depth >= 0) names.add(name);
+        captured(e, nested, names);
+      }
+      case CallExpr(_, Expr callee, List<Expr> args) -> {
+        captured(callee, nested, names);
+        args.forEach(e -> captured(e, nested, names));
+      }
+      case InlineExpr(_, CallExpr call, _, _, _) -> captured(call, nested, names);
+      case BinaryExpr(_, Expr left, _, Expr right) -> {
+        captured(left, nested, names);
+        captured(right, nested, names);
+      }
+      case UnaryExpr(_, _, Expr e) -> captured(e, nested, names);
+      case Grouping(_, Expr e) -> captured(e, nested, names);
+      case GetExpr(_, Expr object, _) -> captured(object, nested, names);
+      case SetExpr(_, Expr object, _, Expr value) -> {
+        captured(object, nested, names);
+        captured(value, nested, names);
+      }
+      case HoistedExpr(_, Expr e, _) -> captured(e, nested, names);
+      case ConstExpr(_, _), ThisExpr(_, _), SuperExpr(_, _, _), ArgExpr(_, _),
+           BoolExpr(_, _), NumExpr(_, _), StrExpr(_, _), NilExpr(_) -> {}
+    }
+  }
+}
@@ -1,33 +1,228 @@
 package dev.dhc.lox;
 
 import dev.dhc.lox.Driver.Command;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
 
 public class Main {
+  private static final String USAGE =
+      "usage: lox [--stats] [--heap] [--fuel N] [--max-alloc BYTES] [--memoize] [--memo-size N]"
+          + " [COMMAND [FILE]]";
+  private static final String BENCH_USAGE =
+      "usage: lox bench [--warmup N] [--runs N] [--show-output] [--json FILE]"
+          + " [--baseline FILE [--threshold PERCENT]] FILE_OR_DIR";
+  private static final String PROFILE_USAGE =
+      "usage: lox profile [--interval MS] [--top N] [--output FILE] FILE";
+
+  private static final String SNAPSHOT_USAGE = "usage: lox snapshot FILE -o IMAGE";
+  private static final String RUN_USAGE = "usage: lox run [--snapshot IMAGE] FILE";
+  private static final String PARALLEL_USAGE = "usage: lox run --parallel [--workers N] FILE...";
+  private static final String SERVE_USAGE = "usage: lox serve [--socket PATH] [--threads N]";
+  private static final String CLIENT_USAGE = "usage: lox client [--socket PATH] ARGS...";
+
+  // Thrown for invalid arguments; main prints the message and exits with USAGE_ERROR.
+  static final class UsageException extends RuntimeException {
+    UsageException(String message) {
+      super(message);
+    }
+  }
+
+  record Invocation(Driver.Options options, Command command) {}
+
+  private static UsageException usage(String message) {
+    return new UsageException(message);
+  }
+
+  private static long longArg(String[] args, int i, String usage) {
+    if (i >= args.length) throw usage(usage);
+    try {
+      final var n = Long.parseLong(args[i]);
+      if (n < 0) throw usage(usage);
+      return n;
+    } catch (NumberFormatException e) {
+      throw usage(usage);
+    }
+  }
+
+  private static int intArg(String[] args, int i, String usage) {
+    return (int) numberArg(args, i, false, usage);
+  }
+
+  private static double numberArg(String[] args, int i, boolean fractional, String usage) {
+    if (i >= args.length) throw usage(usage);
+    try {
+      return fractional ? Double.parseDouble(args[i]) : Integer.parseInt(args[i]);
+    } catch (NumberFormatException e) {
+      throw usage(usage);
+    }
+  }
+
+  private static String stringArg(String[] args, int i, String usage) {
+    if (i >= args.length) throw usage(usage);
+    return args[i];
+  }
+
+  private static Command parseBench(String[] args) {
+    int warmup = 5;
+    int runs = 20;
+    var showOutput = false;
+    Optional<String> json = Optional.empty();
+    Optional<String> baseline = Optional.empty();
+    double threshold = 10;
+    String path = null;
+    for (int i = 1; i < args.length; i++) {
+      switch (args[i]) {
+        case "--warmup" -> warmup = intArg(args, ++i, BENCH_USAGE);
+        case "--runs" -> runs = intArg(args, ++i, BENCH_USAGE);
+        case "--show-output" -> showOutput = true;
+        case "--json" -> json = Optional.of(stringArg(args, ++i, BENCH_USAGE));
+        case "--baseline" -> baseline = Optional.of(stringArg(args, ++i, BENCH_USAGE));
+        case "--threshold" -> threshold = numberArg(args, ++i, true, BENCH_USAGE);
+        default -> {
+          if (path != null || args[i].startsWith("--")) throw usage(BENCH_USAGE);
+          path = args[i];
+        }
+      }
+    }
+    if (path == null || warmup < 0 || runs < 1) throw usage(BENCH_USAGE);
+    return new Command.Bench(path, warmup, runs, showOutput, json, baseline, threshold);
+  }
+
+  private static Command parseProfile(String[] args) {
+    double interval = 1;
+    int top = 20;
+    var output = "profile.folded";
+    String path = null;
+    for (int i = 1; i < args.length; i++) {
+      switch (args[i]) {
+        case "--interval" -> interval = numberArg(args, ++i, true, PROFILE_USAGE);
+        case "--top" -> top = intArg(args, ++i, PROFILE_USAGE);
+        case "--output" -> output = stringArg(args, ++i, PROFILE_USAGE);
+        default -> {
+          if (path != null || args[i].startsWith("--")) throw usage(PROFILE_USAGE);
+          path = args[i];
+        }
+      }
+    }
+    if (path == null || interval <= 0 || top < 1) throw usage(PROFILE_USAGE);
+    return new Command.Profile(path, interval, top, output);
+  }
+
   private static Command parseCommand(String[] args) {
     if (args.length == 0) return new Command.Repl();
-    if (args.length == 1) return new Command.Run(args[0]);
-    if (args.length > 2) {
-      System.err.println("usage: lox [COMMAND [FILE]]");
-      System.exit(Status.USAGE_ERROR.code());
+    if (args[0].equals("bench")) return parseBench(args);
+    if (args[0].equals("profile")) return parseProfile(args);
+    if (args[0].equals("snapshot")) {
+      if (args.length != 4 || !(args[2].equals("-o") || args[2].equals("--output"))) {
+        throw usage(SNAPSHOT_USAGE);
+      }
+      return new Command.Snapshot(args[1], args[3]);
+    }
+    if (args.length > 1 && args[0].equals("run") && args[1].equals("--snapshot")) {
+      if (args.length != 4) throw usage(RUN_USAGE);
+      return new Command.Run(args[3], Optional.of(args[2]));
     }
+    if (args.length > 1 && args[0].equals("run") && args[1].equals("--parallel")) {
+      var workers = Runtime.getRuntime().availableProcessors();
+      var first = 2;
+      if (args.length > 2 && args[2].equals("--workers")) {
+        workers = intArg(args, 3, PARALLEL_USAGE);
+        first = 4;
+      }
+      if (args.length == first || workers < 1) throw usage(PARALLEL_USAGE);
+      return new Command.RunParallel(List.of(args).subList(first, args.length), workers);
+    }
+    if (args.length == 1) return new Command.Run(args[0]);
+    if (args.length > 2) throw usage(USAGE);
     final var path = args[1];
     return switch (args[0]) {
       case "tokenize" -> new Command.Tokenize(path);
       case "parse" -> new Command.Parse(path);
       case "evaluate" -> new Command.Evaluate(path);
       case "run" -> new Command.Run(path);
-      default -> {
-        System.err.println("invalid command");
-        System.exit(Status.USAGE_ERROR.code());
-        throw new AssertionError();
-      }
+      default -> throw usage("invalid command");
     };
   }
 
+  // Parses the arguments of a driver command, i.e. everything but serve and client.
+  static Invocation parse(String[] args) {
+    var stats = false;
+    var heap = false;
+    long fuel = 0;
+    long allocation = 0;
+    var memoize = false;
+    var memoSize = Driver.Options.MEMO_SIZE;
+    var flags = 0;
+    options:
+    for (; flags < args.length; flags++) {
+      switch (args[flags]) {
+        case "--stats" -> stats = true;
+        case "--heap" -> heap = true;
+        case "--fuel" -> fuel = longArg(args, ++flags, USAGE);
+        case "--max-alloc" -> allocation = longArg(args, ++flags, USAGE);
+        case "--memoize" -> memoize = true;
+        case "--memo-size" -> {
+          memoize = true;
+          memoSize = intArg(args, ++flags, USAGE);
+          if (memoSize < 1) throw usage(USAGE);
+        }
+        default -> {
+          break options;
+        }
+      }
+    }
+    final var command = parseCommand(Arrays.copyOfRange(args, Math.min(flags, args.length), args.length));
+    final var options = new Driver.Options(stats, heap, new Budget(fuel, allocation), memoize ? memoSize : 0);
+    return new Invocation(options, command);
+  }
+
+  private static Status serve(String[] args) throws IOException {
+    var socket = Server.defaultSocket();
+    var threads = Runtime.getRuntime().availableProcessors();
+    for (int i = 1; i < args.length; i++) {
+      switch (args[i]) {
+        case "--socket" -> socket = Paths.get(stringArg(args, ++i, SERVE_USAGE));
+        case "--threads" -> threads = intArg(args, ++i, SERVE_USAGE);
+        default -> throw usage(SERVE_USAGE);
+      }
+    }
+    if (threads < 1) throw usage(SERVE_USAGE);
+    new Server(socket, threads).serve();
+    return Status.SUCCESS;
+  }
+
+  private static Status client(String[] args) throws IOException {
+    var socket = Server.defaultSocket();
+    var first = 1;
+    if (args.length > 1 && args[1].equals("--socket")) {
+      socket = Paths.get(stringArg(args, 2, CLIENT_USAGE));
+      first = 3;
+    }
+    return Client.run(socket, Arrays.copyOfRange(args, first, args.length));
+  }
+
   public static void main(String[] args) {
-    final var command = parseCommand(args);
-    final var driver = new Driver(System.in, System.out, System.err);
-    final var result = driver.run(command);
-    System.exit(result.code());
+    try {
+      final Status result;
+      if (args.length > 0 && args[0].equals("serve")) {
+        result = serve(args);
+      } else if (args.length > 0 && args[0].equals("client")) {
+        result = client(args);
+      } else {
+        final var invocation = parse(args);
+        final var driver = new Driver(System.in, System.out, System.err, invocation.options());
+        result = driver.run(invocation.command());
+      }
+      System.exit(result.code());
+    } catch (UsageException e) {
+      System.err.println(e.getMessage());
+      System.exit(Status.USAGE_ERROR.code());
+    } catch (IOException e) {
+      System.err.println(e);
+      System.exit(Status.IO_ERROR.code());
+    }
   }
 }
@@ -0,0 +1,290 @@
+package dev.dhc.lox;
+
+import dev.dhc.lox.AstNode.ArgExpr;
+import dev.dhc.lox.AstNode.AssignExpr;
+import dev.dhc.lox.AstNode.BinaryExpr;
+import dev.dhc.lox.AstNode.BlockStmt;
+import dev.dhc.lox.AstNode.BoolExpr;
+import dev.dhc.lox.AstNode.CallExpr;
+import dev.dhc.lox.AstNode.ClassDecl;
+import dev.dhc.lox.AstNode.ConstExpr;
+import dev.dhc.lox.AstNode.CounterLoopStmt;
+import dev.dhc.lox.AstNode.Expr;
+import dev.dhc.lox.AstNode.ExprStmt;
+import dev.dhc.lox.AstNode.ForEachStmt;
+import dev.dhc.lox.AstNode.FunDecl;
+import dev.dhc.lox.AstNode.GetExpr;
+import dev.dhc.lox.AstNode.Grouping;
+import dev.dhc.lox.AstNode.HoistedExpr;
+import dev.dhc.lox.AstNode.IfElseStmt;
+import dev.dhc.lox.AstNode.ImportStmt;
+import dev.dhc.lox.AstNode.InlineExpr;
+import dev.dhc.lox.AstNode.LoopStmt;
+import dev.dhc.lox.AstNode.MemoFunDecl;
+import dev.dhc.lox.AstNode.NilExpr;
+import dev.dhc.lox.AstNode.NumExpr;
+import dev.dhc.lox.AstNode.PrintStmt;
+import dev.dhc.lox.AstNode.Program;
+import dev.dhc.lox.AstNode.ReturnStmt;
+import dev.dhc.lox.AstNode.SetExpr;
+import dev.dhc.lox.AstNode.Stmt;
+import dev.dhc.lox.AstNode.StrExpr;
+import dev.dhc.lox.AstNode.SuperExpr;
+import dev.dhc.lox.AstNode.ThisExpr;
+import dev.dhc.lox.AstNode.UnaryExpr;
+import dev.dhc.lox.AstNode.VarDecl;
+import dev.dhc.lox.AstNode.VarExpr;
+import dev.dhc.lox.AstNode.WhileStmt;
+import dev.dhc.lox.Value.BoolValue;
+import dev.dhc.lox.Value.NilValue;
+import dev.dhc.lox.Value.NumValue;
+import dev.dhc.lox.Value.StrValue;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+// For --memoize: turns global functions that are pure into MemoFunDecls, whose calls the
+// evaluator serves from a cache. A function is pure if it is declared once and never reassigned,
+// and its body
+//
+// - doesn't print, assign variables outside the function, or touch instances or classes;
+// - reads no variables outside the function, except to call them;
+// - only calls pure functions and natives whose result depends only on their arguments.
+//
+// Functions the inliner inlined are left alone, since their calls are already cheap. Programs that
+// import modules are left alone too, since a module could redefine any global. Runs after all
+// other passes.
+final class Memoizer {
+  private final Map<String, Integer> declarations = new HashMap<>();
+  private final Set<String> assigned = new HashSet<>();
+  private final Set<String> inlined = new HashSet<>();
+
+  private Memoizer() {}
+
+  static Program memoize(Program program, int capacity) {
+    if (program.stmts().stream().anyMatch(stmt -> stmt instanceof ImportStmt)) return program;
+    final var m = new Memoizer();
+    program.stmts().forEach(m::scan);
+    final var pure = m.pure(program.stmts());
+    pure.removeAll(m.inlined);
+    if (pure.isEmpty()) return program;
+    return new Program(program.stmts().stream()
+        .map(stmt -> stmt instanceof FunDecl fun && pure.contains(fun.name().cargo())
+            ? new MemoFunDecl(fun.tok(), fun, capacity)
+            : stmt)
+        .toList());
+  }
+
+  // The names of the pure global functions.
+  private Set<String> pure(List<Stmt> globals) {
+    final var callees = new HashMap<String, Set<String>>();
+    for (var stmt : globals) {
+      if (stmt instanceof FunDecl fun && isStable(fun.name().cargo())) {
+        final var calls = new HashSet<String>();
+        if (fun.body().stream().allMatch(s -> isPure(s, calls))) callees.put(fun.name().cargo(), calls);
+      }
+    }
+    // drop functions that call anything impure, until nothing changes
+    var changed = true;
+    while (changed) {
+      changed = callees.values().removeIf(calls -> !calls.stream().allMatch(callee ->
+          callees.containsKey(callee) || (!declarations.containsKey(callee) && Stdlib.isPure(callee))));
+    }
+    return new HashSet<>(callees.keySet());
+  }
+
+  private boolean isStable(String name) {
+    return declarations.get(name) == 1 && !assigned.contains(name);
+  }
+
+  private void scan(Stmt stmt) {
+    switch (stmt) {
+      case FunDecl(_, Token name, _, _) -> declarations.merge(name.cargo(), 1, Integer::sum);
+      case VarDecl(_, Token name, _) -> declarations.merge(name.cargo(), 1, Integer::sum);
+      case ClassDecl(_, Token name, _, _) -> declarations.merge(name.cargo(), 1, Integer::sum);
+      default -> {}
+    }
+    visit(stmt);
+  }
+
+  // Records assigned globals and inlined functions anywhere in the program.
+  private void visit(Stmt stmt) {
+    switch (stmt) {
+      case BlockStmt(_, List<Stmt> stmts) -> stmts.forEach(this::visit);
+      case FunDecl(_, _, _, List<Stmt> body) -> body.forEach(this::visit);
+      case MemoFunDecl(_, FunDecl fun, _) -> visit(fun);
+      case IfElseStmt(_, Expr cond, Stmt conseq, Optional<Stmt> alt) -> {
+        visit(cond);
+        visit(conseq);
+        alt.ifPresent(this::visit);
+      }
+      case WhileStmt(_, Expr cond, Stmt body) -> {
+        visit(cond);
+        visit(body);
+      }
+      case LoopStmt(_, Expr cond, Stmt body, _, _) -> {
+        visit(cond);
+        visit(body);
+      }
+      case CounterLoopStmt(_, VarExpr counter, _, Expr limit, _, List<Stmt> body, _, _) -> {
+        if (counter.scopeDepth() < 0) assigned.add(counter.name());
+        visit(limit);
+        body.forEach(this::visit);
+      }
+      case ForEachStmt(_, _, Expr iterable, Stmt body, _) -> {
+        visit(iterable);
+        visit(body);
+      }
+      case ClassDecl(_, _, Optional<VarExpr> superclass, List<FunDecl> methods) -> {
+        superclass.ifPresent(this::visit);
+        methods.forEach(this::visit);
+      }
+      case VarDecl(_, _, Optional<Expr> init) -> init.ifPresent(this::visit);
+      case ExprStmt(_, Expr expr) -> visit(expr);
+      case PrintStmt(_, Expr expr) -> visit(expr);
+      case ReturnStmt(_, Expr expr) -> visit(expr);
+      case ImportStmt(_, _, _) -> {}
+    }
+  }
+
+  private void visit(Expr expr) {
+    switch (expr) {
+      case AssignExpr(_, String name, int depth, Expr e) -> {
+        if (depth < 0) assigned.add(name);
+        visit(e);
+      }
+      case CallExpr(_, Expr callee, List<Expr> args) -> {
+        visit(callee);
+        args.forEach(this::visit);
+      }
+      case InlineExpr(_, CallExpr call, String name, _, _) -> {
+        inlined.add(name);
+        visit(call);
+      }
+      case BinaryExpr(_, Expr left, _, Expr right) -> {
+        visit(left);
+        visit(right);
+      }
+      case UnaryExpr(_, _, Expr e) -> visit(e);
+      case Grouping(_, Expr e) -> visit(e);
+      case GetExpr(_, Expr object, _) -> visit(object);
+      case SetExpr(_, Expr object, _, Expr value) -> {
+        visit(object);
+        visit(value);
+      }
+      case HoistedExpr(_, Expr e, _) -> visit(e);
+      case BoolExpr(_, _), NumExpr(_, _), StrExpr(_, _), NilExpr(_), ConstExpr(_, _), VarExpr(_, _, _),
+           ThisExpr(_, _), SuperExpr(_, _, _), ArgExpr(_, _) -> {}
+    }
+  }
+
+  // Whether a statement in the body of a global function is pure, given that the global functions
+  // it calls (added to calls) are.
+  private static boolean isPure(Stmt stmt, Set<String> calls) {
+    return switch (stmt) {
+      case BlockStmt(_, List<Stmt> stmts) -> stmts.stream().allMatch(s -> isPure(s, calls));
+      case IfElseStmt(_, Expr cond, Stmt conseq, Optional<Stmt> alt) ->
+          isPure(cond, calls) && isPure(conseq, calls) && alt.map(s -> isPure(s, calls)).orElse(true);
+      case WhileStmt(_, Expr cond, Stmt body) -> isPure(cond, calls) && isPure(body, calls);
+      case LoopStmt(_, Expr cond, Stmt body, _, _) -> isPure(cond, calls) && isPure(body, calls);
+      case CounterLoopStmt(_, VarExpr counter, _, Expr limit, _, List<Stmt> body, _, _) ->
+          counter.scopeDepth() >= 0 && isPure(limit, calls) && body.stream().allMatch(s -> isPure(s, calls));
+      case ForEachStmt(_, _, Expr iterable, Stmt body, _) -> isPure(iterable, calls) && isPure(body, calls);
+      case VarDecl(_, _, Optional<Expr> init) -> init.map(e -> isPure(e, calls)).orElse(true);
+      case ExprStmt(_, Expr expr) -> isPure(expr, calls);
+      case ReturnStmt(_, Expr expr) -> isPure(expr, calls);
+      // nested functions and classes could capture and leak local state
+      case PrintStmt(_, _), FunDecl(_, _, _, _), MemoFunDecl(_, _, _), ClassDecl(_, _, _, _),
+           ImportStmt(_, _, _) -> false;
+    };
+  }
+
+  // The function is global, so every variable with a depth belongs to it.
+  private static boolean isPure(Expr expr, Set<String> calls) {
+    return switch (expr) {
+      case BoolExpr(_, _), NumExpr(_, _), StrExpr(_, _), NilExpr(_), ConstExpr(_, _), ArgExpr(_, _) -> true;
+      case VarExpr(_, _, int depth) -> depth >= 0;
+      case AssignExpr(_, _, int depth, Expr e) -> depth >= 0 && isPure(e, calls);
+      case CallExpr(_, Expr callee, List<Expr> args) -> {
+        if (!(callee instanceof VarExpr(_, String name, int depth) && depth < 0)) yield false;
+        calls.add(name);
+        yield args.stream().allMatch(e -> isPure(e, calls));
+      }
+      case InlineExpr(_, CallExpr call, _, _, _) -> isPure(call, calls);
+      case BinaryExpr(_, Expr left, _, Expr right) -> isPure(left, calls) && isPure(right, calls);
+      case UnaryExpr(_, _, Expr e) -> isPure(e, calls);
+      case Grouping(_, Expr e) -> isPure(e, calls);
+      case HoistedExpr(_, Expr e, _) -> isPure(e, calls);
+      case GetExpr(_, _, _), SetExpr(_, _, _, _), ThisExpr(_, _), SuperExpr(_, _, _) -> false;
+    };
+  }
+
+  // The results of one memoized function, keyed by its arguments, evicting the least recently
+  // used once there are more than capacity. Shared by tasks, so synchronized.
+  static final class Cache {
+    private final String name;
+    private final LinkedHashMap<Object, Value> results;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    Cache(String name, int capacity) {
+      this.name = name;
+      this.results = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override protected boolean removeEldestEntry(Map.Entry<Object, Value> eldest) {
+          if (size() <= capacity) return false;
+          evictions++;
+          return true;
+        }
+      };
+    }
+
+    // The cache key for the arguments, if they are all numbers, strings, booleans or nil. A single
+    // argument is its own key.
+    static Optional<Object> key(List<Value> args) {
+      for (var arg : args) {
+        if (!isImmutable(arg)) return Optional.empty();
+      }
+      return Optional.of(args.size() == 1 ? args.getFirst() : List.copyOf(args));
+    }
+
+    private static boolean isImmutable(Value value) {
+      return value instanceof NumValue || value instanceof StrValue || value instanceof BoolValue
+          || value instanceof NilValue;
+    }
+
+    synchronized Optional<Value> get(Object key) {
+      final var result = results.get(key);
+      if (result != null) hits++;
+      else misses++;
+      return Optional.ofNullable(result);
+    }
+
+    // Only keeps immutable results: a pure function can still return a new list, e.g. from split,
+    // and every caller must get its own.
+    synchronized void put(Object key, Value result) {
+      if (!isImmutable(result)) return;
+      results.put(key, result);
+    }
+
+    String name() {
+      return name;
+    }
+
+    synchronized long hits() {
+      return hits;
+    }
+
+    synchronized long misses() {
+      return misses;
+    }
+
+    synchronized long evictions() {
+      return evictions;
+    }
+  }
+}
@@ -0,0 +1,575 @@
+package dev.dhc.lox;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import dev.dhc.lox.Value.FilterIterator;
+import dev.dhc.lox.Value.LineIterator;
+import dev.dhc.lox.Value.BoolValue;
+import dev.dhc.lox.Value.LoxArray;
+import dev.dhc.lox.Value.LoxBoundFunction;
+import dev.dhc.lox.Value.LoxCallable;
+import dev.dhc.lox.Value.LoxChannel;
+import dev.dhc.lox.Value.LoxClass;
+import dev.dhc.lox.Value.LoxFunction;
+import dev.dhc.lox.Value.LoxIterator;
+import dev.dhc.lox.Value.LoxList;
+import dev.dhc.lox.Value.LoxMap;
+import dev.dhc.lox.Value.LoxMemoFunction;
+import dev.dhc.lox.Value.LoxNativeFunction;
+import dev.dhc.lox.Value.LoxReader;
+import dev.dhc.lox.Value.LoxTask;
+import dev.dhc.lox.Value.LoxWriter;
+import dev.dhc.lox.Value.NilValue;
+import dev.dhc.lox.Value.NumValue;
+import dev.dhc.lox.Value.RangeIterator;
+import dev.dhc.lox.Value.StrValue;
+import dev.dhc.lox.Value.TakeIterator;
+import dev.dhc.lox.Value.TransformIterator;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.lang.foreign.Arena;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BiFunction;
+
+// The native functions defined in the globals of every program.
+//
+// spawn(fn) calls fn with no arguments on a new virtual thread, with its own evaluator that shares
+// the globals and any variables captured by fn, and returns a task. join(task) waits for the task
+// and returns fn's result, or fails with its runtime error. channel(capacity) creates a bounded
+// channel: send(ch, value) waits while it is full and receive(ch) while it is empty. A program ends
+// when its main script does, whether or not its tasks have finished.
+//
+// Memory model: reads and writes of a global, a variable captured by a spawned function or an
+// instance field are atomic, and a value written by one thread is eventually seen by others. The
+// variables of other closures a task gets hold of, through a global or a channel, say, should only
+// be used by one thread at a time. Everything a thread did before spawning a task, sending a value
+// or finishing a task is visible to the task, to the receiver of the value and to the joiner,
+// respectively. Anything else, like a read followed by a write of a counter, can interleave with
+// other threads, so shared state should be passed through channels.
+final class Natives {
+  private static final Value NIL = new NilValue();
+
+  private Natives() {}
+
+  // Thrown by natives for invalid arguments, and reported as a runtime error at the call.
+  static final class NativeError extends RuntimeException {
+    NativeError(String message) {
+      super(message, null, false, false);
+    }
+  }
+
+  // The standard input of a program and the writers it has open, shared with its tasks.
+  static final class Streams {
+    private final InputStream in;
+    private LoxReader stdin = null;
+    private final Set<LoxWriter> writers = ConcurrentHashMap.newKeySet();
+
+    Streams(InputStream in) {
+      this.in = in;
+    }
+
+    private synchronized LoxReader stdin() {
+      if (stdin == null) {
+        stdin = new LoxReader("stdin", new BufferedReader(new InputStreamReader(in, UTF_8), BUFFER));
+      }
+      return stdin;
+    }
+
+    // Flushes and closes the writers a program left open when it ends.
+    void close() {
+      IOException failure = null;
+      for (var writer : writers) {
+        try {
+          writer.close();
+        } catch (IOException e) {
+          if (failure == null) failure = e;
+        }
+      }
+      writers.clear();
+      if (failure != null) throw new UncheckedIOException(failure);
+    }
+  }
+
+  // characters buffered by readers and writers
+  private static final int BUFFER = 1 << 16;
+
+  static void define(Environment globals, Streams streams) {
+    Stdlib.define(globals);
+
+    define(globals, "spawn", 1, (eval, args) -> {
+      final var f = arg(args, 0, LoxCallable.class, "spawn", "a function");
+      if (f.arity() != 0) throw new NativeError("spawn expects a function with no parameters.");
+      share(f);
+      final var child = eval.fork();
+      final var result = new CompletableFuture<Value>();
+      Thread.ofVirtual().name("lox-task").start(() -> {
+        try {
+          result.complete(child.runTask(f));
+        } catch (Throwable e) {
+          result.completeExceptionally(e);
+        }
+      });
+      return new LoxTask(result);
+    });
+
+    define(globals, "join", 1, (eval, args) -> {
+      final var task = arg(args, 0, LoxTask.class, "join", "a task");
+      eval.meter().pause();
+      try {
+        return task.result().get();
+      } catch (ExecutionException e) {
+        // fail the same way as the task did
+        if (e.getCause() instanceof Error error) throw error;
+        throw new NativeError("Task failed: " + e.getCause());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new NativeError("Interrupted while joining a task.");
+      } finally {
+        eval.meter().resume();
+      }
+    });
+
+    define(globals, "channel", 1, (_, args) -> {
+      final var capacity = arg(args, 0, NumValue.class, "channel", "a number").value();
+      if (capacity < 1 || capacity != Math.floor(capacity) || capacity > Integer.MAX_VALUE) {
+        throw new NativeError("Channel capacity must be a positive integer.");
+      }
+      return new LoxChannel(new ArrayBlockingQueue<>((int) capacity));
+    });
+
+    define(globals, "send", 2, (eval, args) -> {
+      final var channel = arg(args, 0, LoxChannel.class, "send", "a channel");
+      eval.meter().pause();
+      try {
+        channel.queue().put(args.get(1));
+        return NIL;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new NativeError("Interrupted while sending.");
+      } finally {
+        eval.meter().resume();
+      }
+    });
+
+    define(globals, "receive", 1, (eval, args) -> {
+      final var channel = arg(args, 0, LoxChannel.class, "receive", "a channel");
+      eval.meter().pause();
+      try {
+        return channel.queue().take();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new NativeError("Interrupted while receiving.");
+      } finally {
+        eval.meter().resume();
+      }
+    });
+
+    defineLists(globals);
+    defineMaps(globals);
+    defineArrays(globals);
+    defineStreams(globals, streams);
+    defineIterators(globals);
+  }
+
+  // list() creates an empty list. Indices are integers from zero; get and set fail outside the
+  // list, and append adds an element at the end.
+  private static void defineLists(Environment globals) {
+    define(globals, "list", 0, (eval, _) -> {
+      eval.allocate(Evaluator.LIST_BYTES);
+      return new LoxList(0);
+    });
+
+    define(globals, "append", 2, (eval, args) -> {
+      final var list = arg(args, 0, LoxList.class, "append", "a list");
+      eval.allocate(list.append(args.get(1)));
+      return list;
+    });
+
+    define(globals, "get", 2, (_, args) -> switch (args.get(0)) {
+      case LoxList list -> {
+        synchronized (list) {
+          yield list.get(index(args, 1, list.size(), "get"));
+        }
+      }
+      case LoxMap map -> map.get(key(args, 1, "get")).orElse(NIL);
+      case LoxArray array -> new NumValue(array.get(index(args, 1, array.length(), "get", "an array")));
+      default -> throw new NativeError("Argument 1 to get must be a list, map or array.");
+    });
+
+    define(globals, "set", 3, (_, args) -> {
+      switch (args.get(0)) {
+        case LoxList list -> {
+          synchronized (list) {
+            list.set(index(args, 1, list.size(), "set"), args.get(2));
+          }
+        }
+        case LoxArray array -> {
+          if (!array.writable()) throw new NativeError("Array is read-only.");
+          final var i = index(args, 1, array.length(), "set", "an array");
+          array.set(i, arg(args, 2, NumValue.class, "set", "a number").value());
+        }
+        default -> throw new NativeError("Argument 1 to set must be a list or an array.");
+      }
+      return args.get(2);
+    });
+
+    define(globals, "len", 1, (_, args) -> switch (args.get(0)) {
+      case LoxList list -> new NumValue(list.size());
+      case LoxMap map -> new NumValue(map.size());
+      case LoxArray array -> new NumValue(array.length());
+      case StrValue(String s) -> new NumValue(s.length());
+      default -> throw new NativeError("Argument 1 to len must be a list, map, array or string.");
+    });
+  }
+
+  // map() creates an empty map, whose keys are strings and numbers. get(map, key) returns nil for
+  // a missing key, put and remove return the value put or removed, and keys(map) returns a list of
+  // the keys in no particular order.
+  private static void defineMaps(Environment globals) {
+    define(globals, "map", 0, (eval, _) -> {
+      eval.allocate(Evaluator.MAP_BYTES);
+      return new LoxMap();
+    });
+
+    define(globals, "put", 3, (eval, args) -> {
+      final var map = arg(args, 0, LoxMap.class, "put", "a map");
+      eval.allocate(map.put(key(args, 1, "put"), args.get(2)));
+      return args.get(2);
+    });
+
+    define(globals, "remove", 2, (_, args) -> {
+      final var map = arg(args, 0, LoxMap.class, "remove", "a map");
+      return map.remove(key(args, 1, "remove")).orElse(NIL);
+    });
+
+    define(globals, "keys", 1, (eval, args) -> {
+      final var map = arg(args, 0, LoxMap.class, "keys", "a map");
+      final var keys = map.keys();
+      final var list = new LoxList(keys.size());
+      eval.allocate(Evaluator.LIST_BYTES + 8L * keys.size());
+      keys.forEach(list::append);
+      return list;
+    });
+  }
+
+  // mmap(path) maps a file of little-endian doubles as a read-only array, and
+  // mmapWritable(path, length) maps the first length doubles of a file for reading and writing,
+  // creating or extending it as needed. The data stays in the page cache rather than on the Java
+  // heap, and is unmapped once the array is garbage.
+  private static void defineArrays(Environment globals) {
+    define(globals, "mmap", 1, (_, args) -> {
+      final var path = Paths.get(arg(args, 0, StrValue.class, "mmap", "a path").value());
+      return mmap(path, FileChannel.MapMode.READ_ONLY, -1);
+    });
+
+    define(globals, "mmapWritable", 2, (_, args) -> {
+      final var path = Paths.get(arg(args, 0, StrValue.class, "mmapWritable", "a path").value());
+      final var length = arg(args, 1, NumValue.class, "mmapWritable", "a number").value();
+      if (length < 0 || length != Math.floor(length) || length > Long.MAX_VALUE / Double.BYTES) {
+        throw new NativeError("Array length must be a non-negative integer.");
+      }
+      return mmap(path, FileChannel.MapMode.READ_WRITE, (long) length);
+    });
+  }
+
+  private static LoxArray mmap(Path path, FileChannel.MapMode mode, long length) {
+    final var writable = mode == FileChannel.MapMode.READ_WRITE;
+    try (var channel = writable
+        ? FileChannel.open(path, READ, WRITE, CREATE)
+        : FileChannel.open(path, READ)) {
+      final var bytes = writable ? length * Double.BYTES : channel.size() / Double.BYTES * Double.BYTES;
+      return new LoxArray(channel.map(mode, 0, bytes, Arena.ofAuto()), writable);
+    } catch (IOException e) {
+      throw new NativeError(String.format("Could not map '%s': %s", path, e));
+    }
+  }
+
+  // open(path) returns a reader over the lines of a file, and stdin() one over standard input.
+  // readLine(reader) returns the next line without its terminator, or nil at the end of input.
+  // create(path) creates or truncates a file and returns a writer; write(writer, value) and
+  // writeLine(writer, value) write a value as print would. Lines are read and written through
+  // large buffers, so a file of any size is processed in constant memory and written in batches:
+  // whenever the buffer fills, on close(stream), and at the end of the program for writers left
+  // open.
+  private static void defineStreams(Environment globals, Streams streams) {
+    define(globals, "stdin", 0, (_, _) -> streams.stdin());
+
+    define(globals, "open", 1, (_, args) -> {
+      final var path = Paths.get(arg(args, 0, StrValue.class, "open", "a path").value());
+      try {
+        final var reader = new InputStreamReader(Files.newInputStream(path), UTF_8);
+        return new LoxReader(path.toString(), new BufferedReader(reader, BUFFER));
+      } catch (IOException e) {
+        throw new NativeError(String.format("Could not open '%s': %s", path, e));
+      }
+    });
+
+    define(globals, "readLine", 1, (eval, args) -> {
+      final var reader = arg(args, 0, LoxReader.class, "readLine", "a reader");
+      try {
+        final var line = reader.readLine();
+        line.ifPresent(eval::madeString);
+        return line.<Value>map(StrValue::new).orElse(NIL);
+      } catch (IOException e) {
+        throw new NativeError(String.format("Could not read %s: %s", reader, e));
+      }
+    });
+
+    define(globals, "create", 1, (_, args) -> {
+      final var path = Paths.get(arg(args, 0, StrValue.class, "create", "a path").value());
+      try {
+        final var writer = new OutputStreamWriter(Files.newOutputStream(path), UTF_8);
+        final var result = new LoxWriter(path.toString(), new BufferedWriter(writer, BUFFER));
+        streams.writers.add(result);
+        return result;
+      } catch (IOException e) {
+        throw new NativeError(String.format("Could not create '%s': %s", path, e));
+      }
+    });
+
+    define(globals, "write", 2, (_, args) -> write(args, "write", ""));
+    define(globals, "writeLine", 2, (_, args) -> write(args, "writeLine", "\n"));
+
+    define(globals, "close", 1, (_, args) -> {
+      try {
+        switch (args.get(0)) {
+          case LoxReader reader -> reader.close();
+          case LoxWriter writer -> {
+            streams.writers.remove(writer);
+            writer.close();
+          }
+          default -> throw new NativeError("Argument 1 to close must be a reader or a writer.");
+        }
+      } catch (IOException e) {
+        throw new NativeError(String.format("Could not close %s: %s", args.get(0), e));
+      }
+      return NIL;
+    });
+  }
+
+  // Iterators produce their values lazily, for `for (var x in iterable)` loops or next(iterator),
+  // which returns nil at the end. range(start, end) counts from start up to end, lines(reader)
+  // reads lines as they are needed, and transform(iterable, fn), filter(iterable, fn) and
+  // take(iterable, n) wrap another iterable, which may also be a list or a reader. toList
+  // collects what is left into a list. (map already creates maps, hence transform.)
+  private static void defineIterators(Environment globals) {
+    define(globals, "range", 2, (_, args) -> new RangeIterator(
+        arg(args, 0, NumValue.class, "range", "a number").value(),
+        arg(args, 1, NumValue.class, "range", "a number").value()));
+
+    define(globals, "lines", 1, (_, args) ->
+        new LineIterator(arg(args, 0, LoxReader.class, "lines", "a reader")));
+
+    define(globals, "transform", 2, (_, args) ->
+        new TransformIterator(iterator(args, 0, "transform"), function(args, 1, "transform")));
+
+    define(globals, "filter", 2, (_, args) ->
+        new FilterIterator(iterator(args, 0, "filter"), function(args, 1, "filter")));
+
+    define(globals, "take", 2, (_, args) -> {
+      final var source = iterator(args, 0, "take");
+      final var count = arg(args, 1, NumValue.class, "take", "a number").value();
+      if (count < 0 || count != Math.floor(count)) {
+        throw new NativeError("Argument 2 to take must be a non-negative integer.");
+      }
+      return new TakeIterator(source, (long) count);
+    });
+
+    define(globals, "next", 1, (eval, args) -> {
+      final var value = arg(args, 0, LoxIterator.class, "next", "an iterator").next(eval);
+      return value != null ? value : NIL;
+    });
+
+    define(globals, "toList", 1, (eval, args) -> {
+      final var source = iterator(args, 0, "toList");
+      final var list = new LoxList(0);
+      eval.allocate(Evaluator.LIST_BYTES);
+      for (var value = source.next(eval); value != null; value = source.next(eval)) {
+        eval.allocate(list.append(value));
+      }
+      return list;
+    });
+  }
+
+  private static LoxIterator iterator(List<Value> args, int i, String fn) {
+    return LoxIterator.of(args.get(i)).orElseThrow(() -> new NativeError(String.format(
+        "Argument %d to %s must be an iterator, a list or a reader.", i + 1, fn)));
+  }
+
+  private static LoxCallable function(List<Value> args, int i, String fn) {
+    final var f = arg(args, i, LoxCallable.class, fn, "a function");
+    if (f.arity() != 1) {
+      throw new NativeError(String.format("%s expects a function with one parameter.", fn));
+    }
+    return f;
+  }
+
+  private static Value write(List<Value> args, String fn, String terminator) {
+    final var writer = arg(args, 0, LoxWriter.class, fn, "a writer");
+    try {
+      if (!writer.write(args.get(1) + terminator)) throw new NativeError("Writer is closed.");
+    } catch (IOException e) {
+      throw new NativeError(String.format("Could not write %s: %s", writer, e));
+    }
+    return NIL;
+  }
+
+  private static Value key(List<Value> args, int i, String fn) {
+    final var key = args.get(i);
+    if (!(key instanceof StrValue || key instanceof NumValue)) {
+      throw new NativeError(String.format("Argument %d to %s must be a string or a number.", i + 1, fn));
+    }
+    return key;
+  }
+
+  private static int index(List<Value> args, int i, int size, String fn) {
+    return (int) index(args, i, size, fn, "a list");
+  }
+
+  private static long index(List<Value> args, int i, long size, String fn, String kind) {
+    if (!(args.get(i) instanceof NumValue(double d)) || d != Math.floor(d)) {
+      throw new NativeError(String.format("Argument %d to %s must be an integer.", i + 1, fn));
+    }
+    if (d < 0 || d >= size) {
+      throw new NativeError(String.format("Index %s is out of range for %s of length %d.",
+          new NumValue(d), kind, size));
+    }
+    return (long) d;
+  }
+
+  // Binds a method handle as a native function with one parameter per parameter of the handle.
+  // Parameters may be double, String, boolean or Value, and results double, String, boolean or
+  // any Value. The types are checked here; the conversions are added to the handle on the first
+  // call, since building them takes long enough to slow down startup.
+  static LoxBoundFunction bind(String name, MethodHandle method) {
+    final var type = method.type();
+    if (type.parameterCount() > LoxBoundFunction.MAX_ARITY) {
+      throw new IllegalArgumentException(String.format(
+          "%s has more than %d parameters", name, LoxBoundFunction.MAX_ARITY));
+    }
+    for (var parameter : type.parameterList()) {
+      if (Conversions.unbox(parameter).isEmpty() && parameter != Value.class) {
+        throw new IllegalArgumentException(String.format("%s has a parameter of type %s", name, parameter));
+      }
+    }
+    final var result = type.returnType();
+    if (Conversions.box(result).isEmpty() && !Value.class.isAssignableFrom(result)) {
+      throw new IllegalArgumentException(String.format("%s returns %s", name, result));
+    }
+    return new LoxBoundFunction(name, type.parameterCount(), () -> Conversions.adapt(name, method));
+  }
+
+  private static final class Conversions {
+    private static final MethodHandle NUMBER = find("number", double.class);
+    private static final MethodHandle STRING = find("string", String.class);
+    private static final MethodHandle BOOLEAN = find("truthy", boolean.class);
+
+    private static MethodHandle find(String name, Class<?> type) {
+      try {
+        return MethodHandles.lookup().findStatic(Natives.class, name,
+            MethodType.methodType(type, String.class, int.class, Value.class));
+      } catch (ReflectiveOperationException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    // (String fn, int i, Value) -> type, for a parameter of the given type
+    static Optional<MethodHandle> unbox(Class<?> type) {
+      return type == double.class ? Optional.of(NUMBER)
+          : type == String.class ? Optional.of(STRING)
+          : type == boolean.class ? Optional.of(BOOLEAN)
+          : Optional.empty();
+    }
+
+    static Optional<Class<? extends Value>> box(Class<?> type) {
+      return type == double.class ? Optional.of(NumValue.class)
+          : type == String.class ? Optional.of(StrValue.class)
+          : type == boolean.class ? Optional.of(BoolValue.class)
+          : Optional.empty();
+    }
+
+    // The method as a handle of type (Value, ...) -> Value.
+    static MethodHandle adapt(String name, MethodHandle method) {
+      final var type = method.type();
+      var handle = method;
+      for (int i = 0; i < type.parameterCount(); i++) {
+        final var unbox = unbox(type.parameterType(i));
+        if (unbox.isPresent()) {
+          handle = MethodHandles.filterArguments(handle, i, MethodHandles.insertArguments(unbox.get(), 0, name, i));
+        }
+      }
+      final var box = box(type.returnType());
+      if (box.isPresent()) {
+        try {
+          handle = MethodHandles.filterReturnValue(handle, MethodHandles.lookup()
+              .findConstructor(box.get(), MethodType.methodType(void.class, type.returnType())));
+        } catch (ReflectiveOperationException e) {
+          throw new IllegalStateException(e);
+        }
+      }
+      return handle.asType(handle.type().changeReturnType(Value.class));
+    }
+  }
+
+  private static double number(String fn, int i, Value value) {
+    if (value instanceof NumValue(double d)) return d;
+    throw new NativeError(String.format("Argument %d to %s must be a number.", i + 1, fn));
+  }
+
+  private static String string(String fn, int i, Value value) {
+    if (value instanceof StrValue(String s)) return s;
+    throw new NativeError(String.format("Argument %d to %s must be a string.", i + 1, fn));
+  }
+
+  private static boolean truthy(String fn, int i, Value value) {
+    return Evaluator.isTruthy(value);
+  }
+
+  // Makes the variables f can reach through its closures safe to use from the task it runs in.
+  private static void share(LoxCallable f) {
+    switch (f) {
+      case LoxFunction fn -> fn.closure().share();
+      case LoxMemoFunction memo -> memo.function().closure().share();
+      case LoxClass klass -> {
+        for (var c = Optional.of(klass); c.isPresent(); c = c.get().superclass()) {
+          c.get().methods().values().forEach(method -> method.closure().share());
+        }
+      }
+      default -> {}
+    }
+  }
+
+  private static void define(Environment globals, String name, int arity,
+                             BiFunction<Evaluator, List<Value>, Value> f) {
+    globals.define(name, new LoxNativeFunction(arity, f));
+  }
+
+  static <T extends Value> T arg(List<Value> args, int i, Class<T> type, String fn, String what) {
+    final var value = args.get(i);
+    if (!type.isInstance(value)) {
+      throw new NativeError(String.format("Argument %d to %s must be %s.", i + 1, fn, what));
+    }
+    return type.cast(value);
+  }
+}
@@ -0,0 +1,180 @@
+package dev.dhc.lox;
+
+import dev.dhc.lox.AstNode.ArgExpr;
+import dev.dhc.lox.AstNode.AssignExpr;
+import dev.dhc.lox.AstNode.BinOp;
+import dev.dhc.lox.AstNode.BinaryExpr;
+import dev.dhc.lox.AstNode.BlockStmt;
+import dev.dhc.lox.AstNode.BoolExpr;
+import dev.dhc.lox.AstNode.CallExpr;
+import dev.dhc.lox.AstNode.ClassDecl;
+import dev.dhc.lox.AstNode.ConstExpr;
+import dev.dhc.lox.AstNode.CounterLoopStmt;
+import dev.dhc.lox.AstNode.Expr;
+import dev.dhc.lox.AstNode.ExprStmt;
+import dev.dhc.lox.AstNode.ForEachStmt;
+import dev.dhc.lox.AstNode.FunDecl;
+import dev.dhc.lox.AstNode.GetExpr;
+import dev.dhc.lox.AstNode.Grouping;
+import dev.dhc.lox.AstNode.HoistedExpr;
+import dev.dhc.lox.AstNode.IfElseStmt;
+import dev.dhc.lox.AstNode.ImportStmt;
+import dev.dhc.lox.AstNode.InlineExpr;
+import dev.dhc.lox.AstNode.LoopStmt;
+import dev.dhc.lox.AstNode.MemoFunDecl;
+import dev.dhc.lox.AstNode.NilExpr;
+import dev.dhc.lox.AstNode.NumExpr;
+import dev.dhc.lox.AstNode.PrintStmt;
+import dev.dhc.lox.AstNode.Program;
+import dev.dhc.lox.AstNode.ReturnStmt;
+import dev.dhc.lox.AstNode.SetExpr;
+import dev.dhc.lox.AstNode.Stmt;
+import dev.dhc.lox.AstNode.StrExpr;
+import dev.dhc.lox.AstNode.SuperExpr;
+import dev.dhc.lox.AstNode.ThisExpr;
+import dev.dhc.lox.AstNode.UnaryExpr;
+import dev.dhc.lox.AstNode.UnaryOp;
+import dev.dhc.lox.AstNode.VarDecl;
+import dev.dhc.lox.AstNode.VarExpr;
+import dev.dhc.lox.AstNode.WhileStmt;
+import dev.dhc.lox.Value.BoolValue;
+import dev.dhc.lox.Value.NilValue;
+import dev.dhc.lox.Value.NumValue;
+import dev.dhc.lox.Value.StrValue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+// Rewrites a resolved program: folds constant expressions and drops code that can never run.
+// Anything that would fail at run time is left alone so the error is still reported there.
+public class Optimizer {
+  public static Program optimize(Program program) {
+    final var folded = new Program(new Optimizer().optimize(program.stmts()));
+    return LoopOptimizer.optimize(Inliner.inline(folded));
+  }
+
+  private static Optional<Value> constant(Expr expr) {
+    return switch (expr) {
+      case ConstExpr(_, Value value) -> Optional.of(value);
+      case BoolExpr(_, boolean value) -> Optional.of(new BoolValue(value));
+      case NumExpr(_, double value) -> Optional.of(new NumValue(value));
+      case StrExpr(_, String value) -> Optional.of(new StrValue(value));
+      case NilExpr(_) -> Optional.of(new NilValue());
+      default -> Optional.empty();
+    };
+  }
+
+  // Replaces a constant expression by its value, keeping the original token for error lines. The
+  // evaluator's own arithmetic does the folding, so folded values are exactly what would have run.
+  private static Expr fold(Expr expr, Optional<Value> value) {
+    return value.<Expr>map(v -> new ConstExpr(expr.tok(), v)).orElse(expr);
+  }
+
+  public Expr optimize(Expr expr) {
+    return switch (expr) {
+      case BoolExpr(_, _), NumExpr(_, _), StrExpr(_, _), NilExpr(_) ->
+          new ConstExpr(expr.tok(), constant(expr).orElseThrow());
+      case ConstExpr(_, _), VarExpr(_, _, _), ThisExpr(_, _), SuperExpr(_, _, _),
+           InlineExpr(_, _, _, _, _), ArgExpr(_, _), HoistedExpr(_, _, _) -> expr;
+
+      case Grouping(Token tok, Expr e) -> {
+        var e2 = optimize(e);
+        yield constant(e2).<Expr>map(value -> new ConstExpr(tok, value)).orElse(new Grouping(tok, e2));
+      }
+
+      case UnaryExpr(Token tok, UnaryOp op, Expr e) -> {
+        var e2 = optimize(e);
+        var unary = new UnaryExpr(tok, op, e2);
+        yield constant(e2).map(v -> fold(unary, Evaluator.fold(op, v))).orElse(unary);
+      }
+
+      case BinaryExpr(Token tok, Expr left, BinOp op, Expr right) -> {
+        var lhs = optimize(left);
+        var rhs = optimize(right);
+        var lhsValue = constant(lhs);
+        if (lhsValue.isPresent() && (op == BinOp.AND || op == BinOp.OR)) {
+          // short-circuiting on a known value: either the left side or the right side wins
+          var truthy = Evaluator.isTruthy(lhsValue.get());
+          yield (op == BinOp.AND) == truthy ? rhs : lhs;
+        }
+        var binary = new BinaryExpr(tok, lhs, op, rhs);
+        var rhsValue = constant(rhs);
+        yield lhsValue.isPresent() && rhsValue.isPresent()
+            ? fold(binary, Evaluator.fold(op, lhsValue.get(), rhsValue.get()))
+            : binary;
+      }
+
+      case AssignExpr(Token tok, String name, int depth, Expr e) ->
+          new AssignExpr(tok, name, depth, optimize(e));
+      case CallExpr(Token tok, Expr callee, List<Expr> args) ->
+          new CallExpr(tok, optimize(callee), args.stream().map(this::optimize).toList());
+      case GetExpr(Token tok, Expr object, Token name) -> new GetExpr(tok, optimize(object), name);
+      case SetExpr(Token tok, Expr object, Token name, Expr value) ->
+          new SetExpr(tok, optimize(object), name, optimize(value));
+    };
+  }
+
+  // A statement with no effect, used where a statement is required but nothing should run.
+  private static Stmt nop(Token tok) {
+    return new ExprStmt(tok, new ConstExpr(tok, new NilValue()));
+  }
+
+  private static boolean isNop(Stmt stmt) {
+    return stmt instanceof ExprStmt(_, Expr e) && constant(e).isPresent();
+  }
+
+  private List<Stmt> optimize(List<Stmt> stmts) {
+    var result = new ArrayList<Stmt>();
+    for (var stmt : stmts) {
+      var stmt2 = optimize(stmt);
+      if (isNop(stmt2)) continue;
+      result.add(stmt2);
+      // everything after an unconditional return is unreachable
+      if (stmt2 instanceof ReturnStmt) break;
+    }
+    return List.copyOf(result);
+  }
+
+  public Stmt optimize(Stmt stmt) {
+    return switch (stmt) {
+      case BlockStmt(Token tok, List<Stmt> stmts) -> new BlockStmt(tok, optimize(stmts));
+
+      case IfElseStmt(Token tok, Expr cond, Stmt conseq, Optional<Stmt> alt) -> {
+        var cond2 = optimize(cond);
+        var conseq2 = optimize(conseq);
+        var alt2 = alt.map(this::optimize).filter(s -> !isNop(s));
+        var condValue = constant(cond2);
+        if (condValue.isPresent()) {
+          yield Evaluator.isTruthy(condValue.get()) ? conseq2 : alt2.orElseGet(() -> nop(tok));
+        }
+        yield new IfElseStmt(tok, cond2, conseq2, alt2);
+      }
+
+      case WhileStmt(Token tok, Expr cond, Stmt body) -> {
+        var cond2 = optimize(cond);
+        if (constant(cond2).map(value -> !Evaluator.isTruthy(value)).orElse(false)) yield nop(tok);
+        yield new WhileStmt(tok, cond2, optimize(body));
+      }
+
+      case ForEachStmt(Token tok, Token name, Expr iterable, Stmt body, boolean reuseScope) ->
+          new ForEachStmt(tok, name, optimize(iterable), optimize(body), reuseScope);
+
+      case FunDecl fun -> optimize(fun);
+
+      case ClassDecl(Token tok, Token name, Optional<VarExpr> superclass, List<FunDecl> methods) ->
+          new ClassDecl(tok, name, superclass, methods.stream().map(this::optimize).toList());
+
+      case VarDecl(Token tok, Token name, Optional<Expr> init) ->
+          new VarDecl(tok, name, init.map(this::optimize));
+      case ExprStmt(Token tok, Expr expr) -> new ExprStmt(tok, optimize(expr));
+      case PrintStmt(Token tok, Expr expr) -> new PrintStmt(tok, optimize(expr));
+      case ReturnStmt(Token tok, Expr expr) -> new ReturnStmt(tok, optimize(expr));
+      case LoopStmt(_, _, _, _, _), CounterLoopStmt(_, _, _, _, _, _, _, _), MemoFunDecl(_, _, _),
+           ImportStmt(_, _, _) -> stmt;
+    };
+  }
+
+  private FunDecl optimize(FunDecl fun) {
+    return new FunDecl(fun.tok(), fun.name(), fun.params(), optimize(fun.body()));
+  }
+}
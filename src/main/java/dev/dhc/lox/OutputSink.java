@@ -0,0 +1,125 @@
+package dev.dhc.lox;
+
+import dev.dhc.lox.Value.NumValue;
+import dev.dhc.lox.Value.StrValue;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+// Buffers program output as UTF-8 bytes and writes it through in large chunks. Values are
+// formatted straight into the buffer; callers flush at exit, before reporting errors, and
+// whenever output has to be visible (e.g. before the REPL reads a line). Tasks share their
+// program's sink, so it is synchronized.
+public final class OutputSink {
+  private static final int CAPACITY = 8192;
+  // integral values below this print without an exponent (see Double.toString)
+  private static final double MAX_PLAIN = 1e7;
+
+  private final OutputStream out;
+  private final byte[] buf = new byte[CAPACITY];
+  private int pos = 0;
+
+  public OutputSink(OutputStream out) {
+    this.out = out;
+  }
+
+  public synchronized void print(Value value) {
+    switch (value) {
+      case NumValue(double d) -> printNumber(d);
+      case StrValue(String s) -> print(s);
+      default -> print(value.toString());
+    }
+  }
+
+  public synchronized void println(Value value) {
+    print(value);
+    newline();
+  }
+
+  public synchronized void println(Object o) {
+    print(String.valueOf(o));
+    newline();
+  }
+
+  public synchronized void print(String s) {
+    final int n = s.length();
+    for (int i = 0; i < n; i++) {
+      final char c = s.charAt(i);
+      if (c >= 0x80) {
+        write(s.substring(i).getBytes(StandardCharsets.UTF_8));
+        return;
+      }
+      if (pos == buf.length) drain();
+      buf[pos++] = (byte) c;
+    }
+  }
+
+  private void newline() {
+    if (pos == buf.length) drain();
+    buf[pos++] = '\n';
+  }
+
+  // Matches NumValue.toString without going through Double.toString for the common case
+  // of integers, falling back to it for everything else.
+  private void printNumber(double d) {
+    final long l = (long) d;
+    if (l != d || Math.abs(d) >= MAX_PLAIN) {
+      print(new NumValue(d).toString());
+      return;
+    }
+    if (buf.length - pos < 20) drain();
+    if (l == 0) {
+      if (Double.doubleToRawLongBits(d) < 0) buf[pos++] = '-';
+      buf[pos++] = '0';
+      return;
+    }
+    long v = l;
+    if (v < 0) {
+      buf[pos++] = '-';
+      v = -v;
+    }
+    final int start = pos;
+    for (; v > 0; v /= 10) buf[pos++] = (byte) ('0' + v % 10);
+    for (int i = start, j = pos - 1; i < j; i++, j--) {
+      final var tmp = buf[i];
+      buf[i] = buf[j];
+      buf[j] = tmp;
+    }
+  }
+
+  private void write(byte[] bytes) {
+    if (bytes.length > buf.length - pos) {
+      drain();
+      if (bytes.length > buf.length) {
+        writeThrough(bytes, bytes.length);
+        return;
+      }
+    }
+    System.arraycopy(bytes, 0, buf, pos, bytes.length);
+    pos += bytes.length;
+  }
+
+  private void drain() {
+    if (pos == 0) return;
+    writeThrough(buf, pos);
+    pos = 0;
+  }
+
+  private void writeThrough(byte[] bytes, int len) {
+    try {
+      out.write(bytes, 0, len);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  public synchronized void flush() {
+    drain();
+    try {
+      out.flush();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
@@ -25,6 +25,7 @@ import static dev.dhc.lox.Token.Type.RIGHT_PAREN;
 import static dev.dhc.lox.Token.Type.SEMICOLON;
 import static dev.dhc.lox.Token.Type.SLASH;
 import static dev.dhc.lox.Token.Type.STAR;
+import static dev.dhc.lox.Token.Type.STRING;
 import static dev.dhc.lox.Token.Type.VAR;
 
 import dev.dhc.lox.AstNode.AssignExpr;
@@ -36,10 +37,12 @@ import dev.dhc.lox.AstNode.CallExpr;
 import dev.dhc.lox.AstNode.ClassDecl;
 import dev.dhc.lox.AstNode.Expr;
 import dev.dhc.lox.AstNode.ExprStmt;
+import dev.dhc.lox.AstNode.ForEachStmt;
 import dev.dhc.lox.AstNode.FunDecl;
 import dev.dhc.lox.AstNode.GetExpr;
 import dev.dhc.lox.AstNode.Grouping;
 import dev.dhc.lox.AstNode.IfElseStmt;
+import dev.dhc.lox.AstNode.ImportStmt;
 import dev.dhc.lox.AstNode.NilExpr;
 import dev.dhc.lox.AstNode.NumExpr;
 import dev.dhc.lox.AstNode.PrintStmt;
@@ -149,6 +152,16 @@ public class Parser {
       case FOR -> {
         next();
         eat(LEFT_PAREN, "Expect '('");
+        // `in` is only special here, so it can still name variables
+        if (peekIs(VAR) && scanner.peekToken(2).type() == IDENTIFIER
+            && scanner.peekToken(2).cargo().equals("in")) {
+          next();
+          final var name = eat(IDENTIFIER, "Expect variable name.");
+          next();
+          final var iterable = expr();
+          eat(RIGHT_PAREN, "Expect '('");
+          yield new ForEachStmt(tok, name, iterable, innerStmt(), false);
+        }
         final var init = peekIs(VAR) ? varDecl() : exprStmt();
         // already ate the first semicolon
         final var cond = peekIs(SEMICOLON) ? new BoolExpr(peek(), true) : expr();
@@ -234,6 +247,14 @@ public class Parser {
     if (peekIs(CLASS)) return classDecl();
     if (peekIs(VAR)) return varDecl();
     if (peekIs(FUN)) return funDecl();
+    // `import` is only special before a string, so it can still name variables
+    if (peekIs(IDENTIFIER) && peek().cargo().equals("import")
+        && scanner.peekToken(1).type() == STRING) {
+      final var tok = next();
+      final var name = next().literal().get().asString();
+      eat(SEMICOLON, "Expect ';' after import.");
+      return new ImportStmt(tok, name, name);
+    }
     return innerStmt();
   }
 
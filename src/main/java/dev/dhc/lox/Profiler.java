@@ -0,0 +1,141 @@
+package dev.dhc.lox;
+
+import dev.dhc.lox.AstNode.Program;
+import dev.dhc.lox.Driver.Command;
+import dev.dhc.lox.Value.LoxFunction;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+// A sampling profiler for Lox code. The evaluator keeps a shadow stack of the Lox functions it is
+// calling, and a separate thread periodically records a copy of it. The samples are written as
+// collapsed stacks (`a;b;c count` per line, as read by flamegraph.pl and speedscope) and summarized
+// as a table of self and total samples per function.
+public class Profiler {
+  private static final String ROOT = "<script>";
+  private final OutputSink out;
+  private final PrintStream err;
+
+  public Profiler(OutputSink out, PrintStream err) {
+    this.out = out;
+    this.err = err;
+  }
+
+  // The shadow stack. Only the evaluator's thread writes to it; the sampler's reads are racy but
+  // always see a prefix of some recent stack, which is good enough for sampling.
+  static final class Frames {
+    private volatile LoxFunction[] frames = new LoxFunction[64];
+    private volatile int depth = 0;
+
+    void push(LoxFunction f) {
+      var fs = frames;
+      if (depth == fs.length) {
+        fs = frames = Arrays.copyOf(fs, fs.length * 2);
+      }
+      fs[depth] = f;
+      depth = depth + 1;
+    }
+
+    void pop() {
+      depth = depth - 1;
+    }
+
+    private String sample() {
+      final var fs = frames;
+      final var d = Math.min(depth, fs.length);
+      final var stack = new StringBuilder(ROOT);
+      for (int i = 0; i < d; i++) {
+        final var f = fs[i];
+        if (f == null) break;
+        stack.append(';').append(label(f));
+      }
+      return stack.toString();
+    }
+  }
+
+  private static String label(LoxFunction f) {
+    return f.owner().map(owner -> owner + "." + f.name()).orElse(f.name()) + ":" + f.line();
+  }
+
+  // Runs the program with an evaluator that keeps its stack in frames, set up by the driver with
+  // the same options as `run`.
+  public Status run(Command.Profile cmd, Program program, Frames frames, Evaluator evaluator)
+      throws IOException {
+    final var samples = new HashMap<String, Long>();
+    final var interval = (long) (cmd.intervalMillis() * 1e6);
+    final var done = new AtomicBoolean();
+    // samples is only touched by the sampler until it has been joined
+    final var sampler = Thread.ofPlatform().daemon().name("lox-profiler").start(() -> {
+      while (true) {
+        LockSupport.parkNanos(interval);
+        if (done.get()) return;
+        samples.merge(frames.sample(), 1L, Long::sum);
+      }
+    });
+    try {
+      evaluator.run(program);
+    } finally {
+      done.set(true);
+      LockSupport.unpark(sampler);
+      out.flush();
+    }
+    try {
+      sampler.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    try (var writer = Files.newBufferedWriter(Paths.get(cmd.output()))) {
+      for (var sample : samples.entrySet()) {
+        writer.write(sample.getKey() + " " + sample.getValue() + "\n");
+      }
+    }
+    report(samples, cmd);
+    return Status.SUCCESS;
+  }
+
+  private record Row(String frame, long self, long total) {}
+
+  private void report(Map<String, Long> samples, Command.Profile cmd) {
+    final var self = new HashMap<String, Long>();
+    final var total = new HashMap<String, Long>();
+    var count = 0L;
+    for (var sample : samples.entrySet()) {
+      final var stack = sample.getKey().split(";");
+      self.merge(stack[stack.length - 1], sample.getValue(), Long::sum);
+      // recursive frames only count once towards the total
+      for (var frame : new HashSet<>(Arrays.asList(stack))) {
+        total.merge(frame, sample.getValue(), Long::sum);
+      }
+      count += sample.getValue();
+    }
+    final var rows = total.keySet().stream()
+        .map(frame -> new Row(frame, self.getOrDefault(frame, 0L), total.get(frame)))
+        .sorted(Comparator.comparingLong(Row::self).reversed()
+            .thenComparing(Comparator.comparingLong(Row::total).reversed())
+            .thenComparing(Row::frame))
+        .limit(cmd.top())
+        .toList();
+
+    err.println(String.format("%d samples every %s ms, collapsed stacks written to %s",
+        count, cmd.intervalMillis(), cmd.output()));
+    err.println(String.format("%-40s %10s %8s %10s %8s", "function", "self", "self%", "total", "total%"));
+    for (var row : rows) {
+      err.println(String.format(Locale.ROOT, "%-40s %10d %7.1f%% %10d %7.1f%%",
+          row.frame(), row.self(), percent(row.self(), count), row.total(), percent(row.total(), count)));
+    }
+  }
+
+  private static double percent(long n, long count) {
+    return count == 0 ? 0 : 100.0 * n / count;
+  }
+}
@@ -0,0 +1,39 @@
+package dev.dhc.lox;
+
+import dev.dhc.lox.AstNode.Program;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Compiled programs by real path, reused for as long as the file's modification time and size stay
+// the same. Programs are immutable, so one cached program can be run by several evaluators at once.
+public final class ProgramCache {
+  private record Entry(FileTime modified, long size, Program program) {}
+
+  private final Map<Path, Entry> entries = new ConcurrentHashMap<>();
+
+  public Program get(Path path) throws IOException {
+    return get(path, Stats.NONE);
+  }
+
+  // Times the lookup as the load phase; a miss then reports the phases of compiling the file.
+  public Program get(Path path, Stats stats) throws IOException {
+    final var start = System.nanoTime();
+    final var key = path.toRealPath();
+    final var attrs = Files.readAttributes(key, BasicFileAttributes.class);
+    final var cached = entries.get(key);
+    final var hit = cached != null
+        && cached.modified().equals(attrs.lastModifiedTime())
+        && cached.size() == attrs.size();
+    stats.phase("load", System.nanoTime() - start);
+    if (hit) return cached.program();
+    // two threads may both compile a changed file; either result is fine to keep
+    final var program = Driver.compile(key, stats);
+    entries.put(key, new Entry(attrs.lastModifiedTime(), attrs.size(), program));
+    return program;
+  }
+}
@@ -1,5 +1,6 @@
 package dev.dhc.lox;
 
+import dev.dhc.lox.AstNode.ArgExpr;
 import dev.dhc.lox.AstNode.AssignExpr;
 import dev.dhc.lox.AstNode.BinOp;
 import dev.dhc.lox.AstNode.BinaryExpr;
@@ -7,12 +8,20 @@ import dev.dhc.lox.AstNode.BlockStmt;
 import dev.dhc.lox.AstNode.BoolExpr;
 import dev.dhc.lox.AstNode.CallExpr;
 import dev.dhc.lox.AstNode.ClassDecl;
+import dev.dhc.lox.AstNode.ConstExpr;
+import dev.dhc.lox.AstNode.CounterLoopStmt;
 import dev.dhc.lox.AstNode.Expr;
 import dev.dhc.lox.AstNode.ExprStmt;
+import dev.dhc.lox.AstNode.ForEachStmt;
 import dev.dhc.lox.AstNode.FunDecl;
 import dev.dhc.lox.AstNode.GetExpr;
 import dev.dhc.lox.AstNode.Grouping;
+import dev.dhc.lox.AstNode.HoistedExpr;
 import dev.dhc.lox.AstNode.IfElseStmt;
+import dev.dhc.lox.AstNode.ImportStmt;
+import dev.dhc.lox.AstNode.InlineExpr;
+import dev.dhc.lox.AstNode.LoopStmt;
+import dev.dhc.lox.AstNode.MemoFunDecl;
 import dev.dhc.lox.AstNode.NilExpr;
 import dev.dhc.lox.AstNode.NumExpr;
 import dev.dhc.lox.AstNode.PrintStmt;
@@ -29,6 +38,9 @@ import dev.dhc.lox.AstNode.VarDecl;
 import dev.dhc.lox.AstNode.VarExpr;
 import dev.dhc.lox.AstNode.WhileStmt;
 import dev.dhc.lox.Error.SyntaxError;
+import dev.dhc.lox.Value.StrValue;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -54,8 +66,27 @@ public class Resolver {
   }
   private ClassType currentClass = ClassType.NONE;
 
+  // Constant pool: each distinct string literal gets a single value per program.
+  private final Map<String, StrValue> strings = new HashMap<>();
+
+  // Imports are relative to this directory.
+  private final Path dir;
+
+  public Resolver() {
+    this(Paths.get(""));
+  }
+
+  private Resolver(Path dir) {
+    this.dir = dir;
+  }
+
   public static Program resolve(Program program) {
-    final var r = new Resolver();
+    return resolve(program, Paths.get(""));
+  }
+
+  // Resolves a program read from a file in dir.
+  public static Program resolve(Program program, Path dir) {
+    final var r = new Resolver(dir);
     return new Program(program.stmts().stream().map(r::resolve).toList());
   }
 
@@ -129,7 +160,11 @@ public class Resolver {
       }
 
       case GetExpr(Token tok, Expr object, Token name) -> new GetExpr(tok, resolve(object), name);
-      case BoolExpr(_, _), NilExpr(_), NumExpr(_, _), StrExpr(_, _) -> expr;
+      case StrExpr(Token tok, String value) ->
+          new ConstExpr(tok, strings.computeIfAbsent(value, s -> new StrValue(Interner.intern(s))));
+      case BoolExpr(_, _), NilExpr(_), NumExpr(_, _), ConstExpr(_, _) -> expr;
+      // produced by optimization passes, which only run on resolved code
+      case InlineExpr(_, _, _, _, _), ArgExpr(_, _), HoistedExpr(_, _, _) -> expr;
       case Grouping(Token tok, Expr e) -> new Grouping(tok, resolve(e));
       case UnaryExpr(Token tok, UnaryOp op, Expr e) -> new UnaryExpr(tok, op, resolve(e));
       case ThisExpr(Token tok, _) -> {
@@ -244,6 +279,25 @@ public class Resolver {
         yield new WhileStmt(tok, cond2, body2);
       }
 
+      case ForEachStmt(Token tok, Token name, Expr iterable, Stmt body, boolean reuseScope) -> {
+        var iterable2 = resolve(iterable);
+        beginScope();
+        declare(name);
+        define(name);
+        var body2 = resolve(body);
+        endScope();
+        yield new ForEachStmt(tok, name, iterable2, body2, reuseScope);
+      }
+
+      case ImportStmt(Token tok, String name, _) -> {
+        // the module defines globals, so importing in a scope would be misleading
+        if (!scopes.empty()) throw new SyntaxError(tok, "Can only import at the top level.");
+        yield new ImportStmt(tok, name, dir.resolve(name).toAbsolutePath().normalize().toString());
+      }
+
+      // produced by optimization passes, which only run on resolved code
+      case LoopStmt(_, _, _, _, _), CounterLoopStmt(_, _, _, _, _, _, _, _), MemoFunDecl(_, _, _) -> stmt;
+
       case ExprStmt(Token tok, Expr expr) -> new ExprStmt(tok, resolve(expr));
       case PrintStmt(Token tok, Expr expr) -> new PrintStmt(tok, resolve(expr));
       case ReturnStmt(Token tok, Expr expr) -> {
@@ -19,9 +19,22 @@ public class Scanner {
   private final Deque<Token> lookahead = new ArrayDeque<>();
   private int line = 1;
   private final StringBuilder current = new StringBuilder();
+  private final boolean timed;
+  private long elapsed = 0;
 
   public Scanner(InputStream in) {
+    this(in, false);
+  }
+
+  // A timed scanner keeps track of the time spent scanning, which is otherwise interleaved with
+  // parsing.
+  public Scanner(InputStream in, boolean timed) {
     this.reader = new BufferedReader(new InputStreamReader(in));
+    this.timed = timed;
+  }
+
+  public long elapsedNanos() {
+    return elapsed;
   }
 
   private Token eofToken() {
@@ -102,7 +115,9 @@ public class Scanner {
   }
 
   private void emit(Type type) {
-    lookahead.add(new Token(line, type, current.toString(), Optional.empty()));
+    var cargo = current.toString();
+    if (type == Type.IDENTIFIER) cargo = Interner.intern(cargo);
+    lookahead.add(new Token(line, type, cargo, Optional.empty()));
   }
 
   private void emit(Type type, Literal<?> literal) {
@@ -148,6 +163,19 @@ public class Scanner {
   }
 
   private void scan() {
+    if (!timed) {
+      scanNext();
+      return;
+    }
+    final var start = System.nanoTime();
+    try {
+      scanNext();
+    } finally {
+      elapsed += System.nanoTime() - start;
+    }
+  }
+
+  private void scanNext() {
     while (!isEof()) {
       current.setLength(0);
       char c = advance();
@@ -0,0 +1,29 @@
+package dev.dhc.lox;
+
+import java.util.concurrent.Semaphore;
+
+// Cooperative time slicing for many executions: each runs on its own virtual thread, but only as
+// many as there are slots run at once. A running execution gives up its slot at every fuel
+// checkpoint if others are waiting, and since the semaphore is fair it then waits behind them.
+final class Scheduler {
+  private final Semaphore slots;
+
+  Scheduler(int slots) {
+    this.slots = new Semaphore(slots, true);
+  }
+
+  void acquire() {
+    slots.acquireUninterruptibly();
+  }
+
+  void release() {
+    slots.release();
+  }
+
+  void yield() {
+    if (slots.hasQueuedThreads()) {
+      release();
+      acquire();
+    }
+  }
+}
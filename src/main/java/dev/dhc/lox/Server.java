@@ -0,0 +1,187 @@
+package dev.dhc.lox;
+
+import dev.dhc.lox.Driver.Command;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Runs lox commands sent by Client over a Unix domain socket, so that short scripts don't pay for
+// JVM startup and warm-up on every run. Each request gets its own Driver and evaluator, and
+// compiled programs are shared through a ProgramCache.
+//
+// A request is the client's working directory followed by its arguments, all written with
+// DataOutputStream.writeUTF after the argument count. The response is a sequence of frames, each a
+// type byte followed by an int: STDOUT and STDERR frames carry that many bytes of output, and the
+// final EXIT frame carries the exit status. Meanwhile the client sends its stdin as STDIN frames in
+// the same format, ending with an empty one; the server only reads them as the program does.
+public class Server {
+  static final int STDOUT = 1;
+  static final int STDERR = 2;
+  static final int EXIT = 3;
+  static final int STDIN = 4;
+
+  private final Path socket;
+  private final ExecutorService pool;
+  private final ProgramCache programs = new ProgramCache();
+
+  public Server(Path socket, int threads) {
+    this.socket = socket;
+    this.pool = Executors.newFixedThreadPool(threads);
+  }
+
+  static Path defaultSocket() {
+    return Paths.get(System.getProperty("java.io.tmpdir"),
+        "lox-" + System.getProperty("user.name") + ".sock");
+  }
+
+  public void serve() throws IOException {
+    Files.deleteIfExists(socket);
+    try (var server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+      server.bind(UnixDomainSocketAddress.of(socket));
+      socket.toFile().deleteOnExit();
+      System.err.println("listening on " + socket);
+      while (true) {
+        final var channel = server.accept();
+        pool.execute(() -> handle(channel));
+      }
+    }
+  }
+
+  private void handle(SocketChannel channel) {
+    try (channel) {
+      final var in = new DataInputStream(Channels.newInputStream(channel));
+      final var out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+      final var cwd = Paths.get(in.readUTF());
+      final var args = new String[in.readInt()];
+      for (int i = 0; i < args.length; i++) {
+        args[i] = in.readUTF();
+      }
+      final var stdout = new PrintStream(new FrameStream(out, STDOUT), false, StandardCharsets.UTF_8);
+      final var stderr = new PrintStream(new FrameStream(out, STDERR), true, StandardCharsets.UTF_8);
+      Status status;
+      try {
+        final var invocation = Main.parse(args);
+        final var driver = new Driver(new FrameInputStream(in), stdout, stderr,
+            invocation.options(), Optional.of(programs));
+        status = driver.run(resolve(invocation.command(), cwd));
+      } catch (Main.UsageException e) {
+        stderr.println(e.getMessage());
+        status = Status.USAGE_ERROR;
+      } catch (RuntimeException | StackOverflowError e) {
+        // a bug or a program too deep for the stack: fail the request but keep serving
+        stdout.flush();
+        stderr.println(e);
+        status = Status.FAILURE;
+      }
+      stdout.flush();
+      stderr.flush();
+      synchronized (out) {
+        out.writeByte(EXIT);
+        out.writeInt(status.code());
+        out.flush();
+      }
+    } catch (IOException e) {
+      // the client went away; nothing left to report to
+      System.err.println(e);
+    }
+  }
+
+  // Makes the paths of a command relative to the client's working directory.
+  private static Command resolve(Command cmd, Path cwd) {
+    return switch (cmd) {
+      case Command.Tokenize(var path) -> new Command.Tokenize(resolve(cwd, path));
+      case Command.Parse(var path) -> new Command.Parse(resolve(cwd, path));
+      case Command.Evaluate(var path) -> new Command.Evaluate(resolve(cwd, path));
+      case Command.Run(var path, var snapshot) ->
+          new Command.Run(resolve(cwd, path), snapshot.map(p -> resolve(cwd, p)));
+      case Command.Snapshot(var path, var output) ->
+          new Command.Snapshot(resolve(cwd, path), resolve(cwd, output));
+      case Command.RunParallel(var paths, var workers) ->
+          new Command.RunParallel(paths.stream().map(path -> resolve(cwd, path)).toList(), workers);
+      case Command.Profile(var path, var interval, var top, var output) ->
+          new Command.Profile(resolve(cwd, path), interval, top, resolve(cwd, output));
+      case Command.Bench(var path, var warmup, var runs, var showOutput, var json, var baseline,
+                         var threshold) ->
+          new Command.Bench(resolve(cwd, path), warmup, runs, showOutput,
+              json.map(p -> resolve(cwd, p)), baseline.map(p -> resolve(cwd, p)), threshold);
+      case Command.Repl() -> throw new Main.UsageException("the repl can't be run through the server");
+    };
+  }
+
+  private static String resolve(Path cwd, String path) {
+    return cwd.resolve(path).toString();
+  }
+
+  // Reads the client's stdin from its STDIN frames.
+  private static final class FrameInputStream extends InputStream {
+    private final DataInputStream in;
+    private int remaining = 0;
+    private boolean done = false;
+
+    FrameInputStream(DataInputStream in) {
+      this.in = in;
+    }
+
+    @Override public int read() throws IOException {
+      final var b = new byte[1];
+      return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) return 0;
+      while (remaining == 0) {
+        if (done) return -1;
+        final var type = in.readByte();
+        if (type != STDIN) throw new IOException("unexpected frame " + type);
+        remaining = in.readInt();
+        done = remaining == 0;
+      }
+      final var n = in.read(b, off, Math.min(len, remaining));
+      if (n < 0) throw new EOFException();
+      remaining -= n;
+      return n;
+    }
+  }
+
+  // Writes everything as frames of one type. Both streams of a request share the connection.
+  private static final class FrameStream extends OutputStream {
+    private final DataOutputStream out;
+    private final int type;
+
+    FrameStream(DataOutputStream out, int type) {
+      this.out = out;
+      this.type = type;
+    }
+
+    @Override public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override public void write(byte[] b, int off, int len) throws IOException {
+      if (len == 0) return;
+      synchronized (out) {
+        out.writeByte(type);
+        out.writeInt(len);
+        out.write(b, off, len);
+        out.flush();
+      }
+    }
+  }
+}
@@ -0,0 +1,470 @@
+package dev.dhc.lox;
+
+import dev.dhc.lox.AstNode.BlockStmt;
+import dev.dhc.lox.AstNode.ClassDecl;
+import dev.dhc.lox.AstNode.CounterLoopStmt;
+import dev.dhc.lox.AstNode.ForEachStmt;
+import dev.dhc.lox.AstNode.FunDecl;
+import dev.dhc.lox.AstNode.IfElseStmt;
+import dev.dhc.lox.AstNode.LoopStmt;
+import dev.dhc.lox.AstNode.MemoFunDecl;
+import dev.dhc.lox.AstNode.Program;
+import dev.dhc.lox.AstNode.Stmt;
+import dev.dhc.lox.AstNode.WhileStmt;
+import dev.dhc.lox.Error.SnapshotError;
+import dev.dhc.lox.Value.BoolValue;
+import dev.dhc.lox.Value.FunctionType;
+import dev.dhc.lox.Value.LoxBoundFunction;
+import dev.dhc.lox.Value.LoxClass;
+import dev.dhc.lox.Value.LoxFunction;
+import dev.dhc.lox.Value.LoxInstance;
+import dev.dhc.lox.Value.LoxList;
+import dev.dhc.lox.Value.LoxMap;
+import dev.dhc.lox.Value.LoxNativeFunction;
+import dev.dhc.lox.Value.NilValue;
+import dev.dhc.lox.Value.NumValue;
+import dev.dhc.lox.Value.StrValue;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+// For `lox snapshot`: an image of the globals a prelude leaves behind, which `run --snapshot`
+// restores instead of running the prelude again. The image holds
+//
+// - the source of the prelude and of each module it imported, which are compiled again (but not
+//   run) on restore, so that functions can refer to their bodies by position;
+// - a table of the environments, functions, classes, instances, lists and maps reachable from the
+//   globals, written so that each only refers to entries before it when created;
+// - the contents of the mutable entries and the globals themselves, which may refer to any entry.
+//
+// Natives are written by name and looked up in the restoring evaluator. Values with state outside
+// the interpreter, such as tasks, channels, streams, iterators and arrays, can't be written.
+final class Snapshot {
+  private static final int MAGIC = 0x4c4f5853;  // "LOXS"
+  // bump when the format or the compiler's output changes
+  private static final int VERSION = 1;
+
+  // value tags
+  private static final int NIL = 0;
+  private static final int FALSE = 1;
+  private static final int TRUE = 2;
+  private static final int NUMBER = 3;
+  private static final int STRING = 4;
+  private static final int NATIVE = 5;
+  private static final int OBJECT = 6;
+
+  private Snapshot() {}
+
+  private record Source(Path path, String text) {}
+
+  // Runs the prelude with the evaluator and writes an image of its globals to output.
+  static void save(Path prelude, Program program, Evaluator evaluator, Path output)
+      throws IOException {
+    final var natives = new IdentityHashMap<Value, String>();
+    evaluator.globals().bindings().forEach((name, value) -> natives.put(value, name));
+    evaluator.run(program);
+
+    final var sources = new ArrayList<Source>();
+    final var bodies = new IdentityHashMap<List<Stmt>, Integer>();
+    sources.add(new Source(prelude.toAbsolutePath(), Files.readString(prelude)));
+    numberBodies(program, bodies);
+    for (var module : evaluator.imported()) {
+      sources.add(new Source(module, Files.readString(module)));
+      numberBodies(Evaluator.MODULES.get(module), bodies);
+    }
+
+    final var writer = new Writer(evaluator.globals(), natives, bodies);
+    final var globals = new HashMap<String, Value>();
+    evaluator.globals().bindings().forEach((name, value) -> {
+      if (!name.equals(natives.get(value))) globals.put(name, value);
+    });
+    globals.values().forEach(writer::collect);
+    writer.drain();
+
+    try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(output)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(sources.size());
+      for (var source : sources) {
+        writeString(out, source.path().toString());
+        writeString(out, source.text());
+      }
+      writer.write(out);
+      writer.writeBindings(out, globals);
+    }
+  }
+
+  // Defines the globals in the image in the evaluator's globals.
+  static void restore(Path image, Evaluator evaluator) throws IOException {
+    try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(image)))) {
+      if (in.readInt() != MAGIC) throw new SnapshotError(String.format("Not a snapshot: %s.", image));
+      if (in.readInt() != VERSION) {
+        throw new SnapshotError(String.format("Snapshot %s was written by another version.", image));
+      }
+      final var bodies = new IdentityHashMap<List<Stmt>, Integer>();
+      final var sources = in.readInt();
+      for (int i = 0; i < sources; i++) {
+        final var path = Paths.get(readString(in));
+        final var text = readString(in).getBytes(StandardCharsets.UTF_8);
+        numberBodies(Driver.compile(new ByteArrayInputStream(text), path, Stats.NONE), bodies);
+        // modules the prelude imported count as imported by the program
+        if (i > 0) evaluator.imported().add(path);
+      }
+      final var byNumber = new ArrayList<List<Stmt>>(bodies.size());
+      for (int i = 0; i < bodies.size(); i++) byNumber.add(null);
+      bodies.forEach((body, i) -> byNumber.set(i, body));
+
+      final var reader = new Reader(evaluator.globals(), byNumber);
+      reader.read(in);
+      reader.readBindings(in, evaluator.globals());
+    }
+  }
+
+  // Numbers the bodies of the functions and methods declared anywhere in a program, in order.
+  private static void numberBodies(Program program, Map<List<Stmt>, Integer> bodies) {
+    program.stmts().forEach(stmt -> numberBodies(stmt, bodies));
+  }
+
+  private static void numberBodies(Stmt stmt, Map<List<Stmt>, Integer> bodies) {
+    switch (stmt) {
+      case FunDecl(_, _, _, List<Stmt> body) -> {
+        bodies.putIfAbsent(body, bodies.size());
+        body.forEach(s -> numberBodies(s, bodies));
+      }
+      case MemoFunDecl(_, FunDecl fun, _) -> numberBodies(fun, bodies);
+      case ClassDecl(_, _, _, List<FunDecl> methods) -> methods.forEach(m -> numberBodies(m, bodies));
+      case BlockStmt(_, List<Stmt> stmts) -> stmts.forEach(s -> numberBodies(s, bodies));
+      case IfElseStmt(_, _, Stmt conseq, Optional<Stmt> alt) -> {
+        numberBodies(conseq, bodies);
+        alt.ifPresent(s -> numberBodies(s, bodies));
+      }
+      case WhileStmt(_, _, Stmt body) -> numberBodies(body, bodies);
+      case LoopStmt(_, _, Stmt body, _, _) -> numberBodies(body, bodies);
+      case CounterLoopStmt(_, _, _, _, _, List<Stmt> body, _, _) ->
+          body.forEach(s -> numberBodies(s, bodies));
+      case ForEachStmt(_, _, _, Stmt body, _) -> numberBodies(body, bodies);
+      default -> {}
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String s) throws IOException {
+    final var bytes = s.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    return new String(in.readNBytes(in.readInt()), StandardCharsets.UTF_8);
+  }
+
+  // Collects everything reachable from the globals into the table, then writes it.
+  private static final class Writer {
+    private final Environment globals;
+    private final Map<Value, String> natives;
+    private final Map<List<Stmt>, Integer> bodies;
+    // table entries in the order they are written: environments before what they enclose,
+    // superclasses before subclasses
+    private final List<Environment> environments = new ArrayList<>();
+    private final List<LoxFunction> functions = new ArrayList<>();
+    private final List<LoxClass> classes = new ArrayList<>();
+    private final List<LoxInstance> instances = new ArrayList<>();
+    private final List<LoxList> lists = new ArrayList<>();
+    private final List<LoxMap> maps = new ArrayList<>();
+    private final Map<Object, Integer> ids = new IdentityHashMap<>();
+    // values whose contents are still to be collected
+    private final ArrayDeque<Object> pending = new ArrayDeque<>();
+
+    Writer(Environment globals, Map<Value, String> natives, Map<List<Stmt>, Integer> bodies) {
+      this.globals = globals;
+      this.natives = natives;
+      this.bodies = bodies;
+    }
+
+    void collect(Value value) {
+      switch (value) {
+        case NilValue(), BoolValue(_), NumValue(_), StrValue(_) -> {}
+        case LoxNativeFunction f -> checkNative(f);
+        case LoxBoundFunction f -> checkNative(f);
+        case LoxFunction f -> {
+          if (ids.containsKey(f)) return;
+          if (!bodies.containsKey(f.body())) {
+            throw new SnapshotError(String.format("Can't snapshot %s, which isn't declared in the prelude.", f));
+          }
+          collect(f.closure());
+          ids.put(f, -1);
+          functions.add(f);
+        }
+        case LoxClass c -> {
+          if (ids.containsKey(c)) return;
+          c.superclass().ifPresent(this::collect);
+          c.methods().values().forEach(this::collect);
+          ids.put(c, -1);
+          classes.add(c);
+        }
+        case LoxInstance i -> {
+          if (ids.containsKey(i)) return;
+          collect(i.klass());
+          ids.put(i, -1);
+          instances.add(i);
+          pending.add(i);
+        }
+        case LoxList l -> {
+          if (ids.containsKey(l)) return;
+          ids.put(l, -1);
+          lists.add(l);
+          pending.add(l);
+        }
+        case LoxMap m -> {
+          if (ids.containsKey(m)) return;
+          ids.put(m, -1);
+          maps.add(m);
+          pending.add(m);
+        }
+        default -> throw new SnapshotError(String.format("Can't snapshot a value of type %s.", value.type()));
+      }
+    }
+
+    private void checkNative(Value f) {
+      if (!natives.containsKey(f)) {
+        throw new SnapshotError(String.format("Can't snapshot %s, which isn't a global native.", f));
+      }
+    }
+
+    private void collect(Environment env) {
+      if (env == globals || ids.containsKey(env)) return;
+      collect(env.enclosing().orElseThrow());
+      ids.put(env, -1);
+      environments.add(env);
+      pending.add(env);
+    }
+
+    // Collects the contents of pending values, iteratively since lists of lists can be deep.
+    void drain() {
+      while (!pending.isEmpty()) {
+        switch (pending.poll()) {
+          case Environment env -> env.bindings().values().forEach(this::collect);
+          case LoxInstance i -> i.fields().values().forEach(this::collect);
+          case LoxList l -> l.elements().forEach(this::collect);
+          case LoxMap m -> {
+            m.keys().forEach(this::collect);
+            m.values().forEach(this::collect);
+          }
+          default -> throw new IllegalStateException();
+        }
+      }
+    }
+
+    void write(DataOutputStream out) throws IOException {
+      // ids follow the order of the table
+      final var next = new int[] {0};
+      for (var table : List.of(environments, functions, classes, instances, lists, maps)) {
+        table.forEach(entry -> ids.put(entry, next[0]++));
+      }
+
+      out.writeInt(environments.size());
+      for (var env : environments) writeEnvironment(out, env.enclosing().orElseThrow());
+      out.writeInt(functions.size());
+      for (var f : functions) {
+        writeString(out, f.name());
+        out.writeBoolean(f.owner().isPresent());
+        if (f.owner().isPresent()) writeString(out, f.owner().get());
+        out.writeInt(f.line());
+        writeEnvironment(out, f.closure());
+        out.writeInt(f.params().size());
+        for (var param : f.params()) writeString(out, param);
+        out.writeInt(bodies.get(f.body()));
+        out.writeByte(f.ftype().ordinal());
+      }
+      out.writeInt(classes.size());
+      for (var c : classes) {
+        writeString(out, c.name());
+        out.writeInt(c.superclass().map(ids::get).orElse(-1));
+        out.writeInt(c.methods().size());
+        for (var method : c.methods().entrySet()) {
+          writeString(out, method.getKey());
+          out.writeInt(ids.get(method.getValue()));
+        }
+      }
+      out.writeInt(instances.size());
+      for (var i : instances) out.writeInt(ids.get(i.klass()));
+      out.writeInt(lists.size());
+      out.writeInt(maps.size());
+
+      // contents, in the same order
+      for (var env : environments) writeBindings(out, env.bindings());
+      for (var i : instances) writeBindings(out, i.fields());
+      for (var l : lists) {
+        final var elements = l.elements();
+        out.writeInt(elements.size());
+        for (var element : elements) writeValue(out, element);
+      }
+      for (var m : maps) {
+        final var keys = m.keys();
+        out.writeInt(keys.size());
+        for (var key : keys) {
+          writeValue(out, key);
+          writeValue(out, m.get(key).orElseThrow());
+        }
+      }
+    }
+
+    private void writeEnvironment(DataOutputStream out, Environment env) throws IOException {
+      out.writeInt(env == globals ? -1 : ids.get(env));
+    }
+
+    void writeBindings(DataOutputStream out, Map<String, Value> bindings) throws IOException {
+      out.writeInt(bindings.size());
+      for (var binding : bindings.entrySet()) {
+        writeString(out, binding.getKey());
+        writeValue(out, binding.getValue());
+      }
+    }
+
+    private void writeValue(DataOutputStream out, Value value) throws IOException {
+      switch (value) {
+        case NilValue() -> out.writeByte(NIL);
+        case BoolValue(boolean b) -> out.writeByte(b ? TRUE : FALSE);
+        case NumValue(double d) -> {
+          out.writeByte(NUMBER);
+          out.writeDouble(d);
+        }
+        case StrValue(String s) -> {
+          out.writeByte(STRING);
+          writeString(out, s);
+        }
+        case LoxNativeFunction f -> writeNative(out, f);
+        case LoxBoundFunction f -> writeNative(out, f);
+        default -> {
+          out.writeByte(OBJECT);
+          out.writeInt(ids.get(value));
+        }
+      }
+    }
+
+    private void writeNative(DataOutputStream out, Value f) throws IOException {
+      out.writeByte(NATIVE);
+      writeString(out, natives.get(f));
+    }
+  }
+
+  // Rebuilds the table in the same order, then fills in the contents.
+  private static final class Reader {
+    private final Environment globals;
+    // as defined before restoring, since the image may redefine their names
+    private final Map<String, Value> natives;
+    private final List<List<Stmt>> bodies;
+    private final List<Object> table = new ArrayList<>();
+
+    Reader(Environment globals, List<List<Stmt>> bodies) {
+      this.globals = globals;
+      this.natives = Map.copyOf(globals.bindings());
+      this.bodies = bodies;
+    }
+
+    void read(DataInputStream in) throws IOException {
+      final var environments = new ArrayList<Environment>();
+      for (int n = in.readInt(); n > 0; n--) {
+        final var env = new Environment(readEnvironment(in));
+        environments.add(env);
+        table.add(env);
+      }
+      for (int n = in.readInt(); n > 0; n--) {
+        final var name = Interner.intern(readString(in));
+        final var owner = in.readBoolean() ? Optional.of(Interner.intern(readString(in))) : Optional.<String>empty();
+        final var line = in.readInt();
+        final var closure = readEnvironment(in);
+        final var params = new ArrayList<String>();
+        for (int p = in.readInt(); p > 0; p--) params.add(Interner.intern(readString(in)));
+        final var body = in.readInt();
+        if (body < 0 || body >= bodies.size()) throw new SnapshotError("Snapshot refers to a missing function.");
+        final var ftype = FunctionType.values()[in.readByte()];
+        table.add(new LoxFunction(name, owner, line, closure, List.copyOf(params), bodies.get(body), ftype));
+      }
+      for (int n = in.readInt(); n > 0; n--) {
+        final var name = Interner.intern(readString(in));
+        final var superclass = in.readInt();
+        final var methods = new HashMap<String, LoxFunction>();
+        for (int m = in.readInt(); m > 0; m--) {
+          methods.put(Interner.intern(readString(in)), (LoxFunction) table.get(in.readInt()));
+        }
+        table.add(new LoxClass(name,
+            superclass < 0 ? Optional.empty() : Optional.of((LoxClass) table.get(superclass)),
+            methods));
+      }
+      final var instances = new ArrayList<LoxInstance>();
+      for (int n = in.readInt(); n > 0; n--) {
+        final var instance = new LoxInstance((LoxClass) table.get(in.readInt()));
+        instances.add(instance);
+        table.add(instance);
+      }
+      final var lists = new ArrayList<LoxList>();
+      for (int n = in.readInt(); n > 0; n--) {
+        final var list = new LoxList(0);
+        lists.add(list);
+        table.add(list);
+      }
+      final var maps = new ArrayList<LoxMap>();
+      for (int n = in.readInt(); n > 0; n--) {
+        final var map = new LoxMap();
+        maps.add(map);
+        table.add(map);
+      }
+
+      for (var env : environments) readBindings(in, env);
+      for (var instance : instances) {
+        for (int n = in.readInt(); n > 0; n--) {
+          instance.fields().put(Interner.intern(readString(in)), readValue(in));
+        }
+      }
+      for (var list : lists) {
+        for (int n = in.readInt(); n > 0; n--) list.append(readValue(in));
+      }
+      for (var map : maps) {
+        for (int n = in.readInt(); n > 0; n--) map.put(readValue(in), readValue(in));
+      }
+    }
+
+    private Environment readEnvironment(DataInputStream in) throws IOException {
+      final var id = in.readInt();
+      return id < 0 ? globals : (Environment) table.get(id);
+    }
+
+    void readBindings(DataInputStream in, Environment env) throws IOException {
+      for (int n = in.readInt(); n > 0; n--) {
+        env.define(Interner.intern(readString(in)), readValue(in));
+      }
+    }
+
+    private Value readValue(DataInputStream in) throws IOException {
+      return switch (in.readByte()) {
+        case NIL -> new NilValue();
+        case FALSE -> new BoolValue(false);
+        case TRUE -> new BoolValue(true);
+        case NUMBER -> new NumValue(in.readDouble());
+        case STRING -> new StrValue(readString(in));
+        case NATIVE -> {
+          final var name = readString(in);
+          yield Optional.ofNullable(natives.get(name))
+              .filter(f -> f instanceof LoxNativeFunction || f instanceof LoxBoundFunction)
+              .orElseThrow(() -> new SnapshotError(String.format("Snapshot refers to a missing native '%s'.", name)));
+        }
+        case OBJECT -> (Value) table.get(in.readInt());
+        default -> throw new SnapshotError("Snapshot is corrupt.");
+      };
+    }
+  }
+}
@@ -0,0 +1,177 @@
+package dev.dhc.lox;
+
+import dev.dhc.lox.Value.LoxClass;
+import java.io.PrintStream;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+// Phase timings and runtime counters for --stats, and allocation sites for --heap. The evaluator
+// reports events on its hot paths, so unless one of those flags is given it holds NONE, whose
+// methods are empty and get inlined away. Allocations are reported with the source line that
+// caused them.
+public sealed interface Stats {
+  Stats NONE = new None();
+
+  default void statement() {}
+  default void call() {}
+  default void environment(int line) {}
+  default void closure(int line) {}
+  default void instance(LoxClass klass) {}
+  default void unwind() {}
+  default void property() {}
+  default void concat(int line, int length) {}
+  // a string made by a native function, such as upper or readLine
+  default void string(int line, int length) {}
+  default void phase(String name, long nanos) {}
+  default void memo(Memoizer.Cache cache) {}
+
+  final class None implements Stats {
+    private None() {}
+  }
+
+  sealed class Counting implements Stats permits Heap {
+    // tasks spawned by the program report to the same collector from their own threads
+    private final Map<String, Long> phases = new LinkedHashMap<>();
+    private final LongAdder statements = new LongAdder();
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder environments = new LongAdder();
+    private final LongAdder closures = new LongAdder();
+    private final LongAdder instances = new LongAdder();
+    private final LongAdder unwinds = new LongAdder();
+    private final LongAdder properties = new LongAdder();
+    private final LongAdder concats = new LongAdder();
+    private final List<Memoizer.Cache> caches = new CopyOnWriteArrayList<>();
+
+    @Override public void statement() { statements.increment(); }
+    @Override public void call() { calls.increment(); }
+    @Override public void environment(int line) { environments.increment(); }
+    @Override public void closure(int line) { closures.increment(); }
+    @Override public void instance(LoxClass klass) { instances.increment(); }
+    @Override public void unwind() { unwinds.increment(); }
+    @Override public void property() { properties.increment(); }
+    @Override public void concat(int line, int length) { concats.increment(); }
+    @Override public void memo(Memoizer.Cache cache) { caches.add(cache); }
+
+    @Override public synchronized void phase(String name, long nanos) {
+      phases.merge(name, nanos, Long::sum);
+    }
+
+    public synchronized void report(PrintStream err) {
+      var total = 0L;
+      err.println(String.format("%-24s %14s", "phase", "ms"));
+      for (var phase : phases.entrySet()) {
+        err.println(String.format(Locale.ROOT, "%-24s %14.3f", phase.getKey(), phase.getValue() / 1e6));
+        total += phase.getValue();
+      }
+      err.println(String.format(Locale.ROOT, "%-24s %14.3f", "total", total / 1e6));
+      err.println();
+      err.println(String.format("%-24s %14s", "counter", "count"));
+      counter(err, "statements executed", statements);
+      counter(err, "calls", calls);
+      counter(err, "environments", environments);
+      counter(err, "closures", closures);
+      counter(err, "instances created", instances);
+      counter(err, "return unwinds", unwinds);
+      counter(err, "property lookups", properties);
+      counter(err, "string concatenations", concats);
+      if (!caches.isEmpty()) {
+        err.println();
+        err.println(String.format("%-24s %14s %14s %14s", "memoized", "hits", "misses", "evictions"));
+        for (var cache : caches) {
+          err.println(String.format("%-24s %14d %14d %14d",
+              cache.name(), cache.hits(), cache.misses(), cache.evictions()));
+        }
+      }
+    }
+
+    private static void counter(PrintStream err, String name, LongAdder value) {
+      err.println(String.format("%-24s %14d", name, value.sum()));
+    }
+  }
+
+  // Counts allocations per class and per source line, in addition to the --stats counters, and
+  // prints a histogram of the objects still reachable from the evaluator's scopes.
+  final class Heap extends Counting {
+    private final PrintStream err;
+    private final Map<String, LongAdder> instancesByClass = new ConcurrentHashMap<>();
+    private final Map<Integer, Site> sites = new ConcurrentSkipListMap<>();
+
+    private static final class Site {
+      final LongAdder environments = new LongAdder();
+      final LongAdder closures = new LongAdder();
+      final LongAdder strings = new LongAdder();
+      final LongAdder chars = new LongAdder();
+    }
+
+    private Optional<Evaluator> evaluator = Optional.empty();
+
+    public Heap(PrintStream err) {
+      this.err = err;
+    }
+
+    void track(Evaluator evaluator) {
+      this.evaluator = Optional.of(evaluator);
+    }
+
+    private Site site(int line) {
+      return sites.computeIfAbsent(line, _ -> new Site());
+    }
+
+    @Override public void environment(int line) {
+      super.environment(line);
+      site(line).environments.increment();
+    }
+
+    @Override public void closure(int line) {
+      super.closure(line);
+      site(line).closures.increment();
+    }
+
+    @Override public void instance(LoxClass klass) {
+      super.instance(klass);
+      instancesByClass.computeIfAbsent(klass.name(), _ -> new LongAdder()).increment();
+    }
+
+    @Override public void concat(int line, int length) {
+      super.concat(line, length);
+      string(line, length);
+    }
+
+    @Override public void string(int line, int length) {
+      final var site = site(line);
+      site.strings.increment();
+      site.chars.add(length);
+    }
+
+    public void reportLive() {
+      evaluator.ifPresent(eval -> HeapHistogram.print(err, eval.globals(), eval.environment()));
+    }
+
+    public void report() {
+      reportAllocations();
+      err.println();
+      reportLive();
+    }
+
+    private void reportAllocations() {
+      err.println(String.format("%-24s %14s", "class", "instances"));
+      instancesByClass.entrySet().stream()
+          .map(e -> Map.entry(e.getKey(), e.getValue().sum()))
+          .sorted(Map.Entry.<String, Long>comparingByValue().reversed()
+              .thenComparing(Map.Entry.comparingByKey()))
+          .forEach(e -> err.println(String.format("%-24s %14d", e.getKey(), e.getValue())));
+      err.println();
+      err.println(String.format("%-8s %14s %14s %14s %14s",
+          "line", "environments", "closures", "strings", "string chars"));
+      sites.forEach((line, site) -> err.println(String.format("%-8d %14d %14d %14d %14d",
+          line, site.environments.sum(), site.closures.sum(), site.strings.sum(), site.chars.sum())));
+    }
+  }
+}
@@ -0,0 +1,171 @@
+package dev.dhc.lox;
+
+import static java.lang.invoke.MethodType.methodType;
+
+import dev.dhc.lox.Natives.NativeError;
+import dev.dhc.lox.Value.LoxBoundFunction;
+import dev.dhc.lox.Value.LoxList;
+import dev.dhc.lox.Value.NilValue;
+import dev.dhc.lox.Value.NumValue;
+import dev.dhc.lox.Value.StrValue;
+import java.lang.invoke.MethodHandles;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+// The math and string functions defined in the globals of every program, bound with
+// Natives.bind. Indices into strings are integers from zero, like list indices.
+final class Stdlib {
+  private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+  // bound once, since every evaluator (including the optimizer's) defines them
+  private static final List<LoxBoundFunction> FUNCTIONS = List.of(
+      bind("clock", Stdlib.class, "clock", double.class),
+
+      bind("abs", Math.class, "abs", double.class, double.class),
+      bind("floor", Math.class, "floor", double.class, double.class),
+      bind("ceil", Math.class, "ceil", double.class, double.class),
+      bind("round", Stdlib.class, "round", double.class, double.class),
+      bind("sqrt", Math.class, "sqrt", double.class, double.class),
+      bind("pow", Math.class, "pow", double.class, double.class, double.class),
+      bind("exp", Math.class, "exp", double.class, double.class),
+      bind("log", Math.class, "log", double.class, double.class),
+      bind("sin", Math.class, "sin", double.class, double.class),
+      bind("cos", Math.class, "cos", double.class, double.class),
+      bind("atan2", Math.class, "atan2", double.class, double.class, double.class),
+      bind("min", Math.class, "min", double.class, double.class, double.class),
+      bind("max", Math.class, "max", double.class, double.class, double.class),
+      bind("mod", Stdlib.class, "mod", double.class, double.class, double.class),
+      bind("random", Math.class, "random", double.class),
+
+      bind("str", Stdlib.class, "str", String.class, Value.class),
+      bind("num", Stdlib.class, "num", Value.class, String.class),
+      bind("upper", Stdlib.class, "upper", String.class, String.class),
+      bind("lower", Stdlib.class, "lower", String.class, String.class),
+      bind("trim", Stdlib.class, "trim", String.class, String.class),
+      bind("substring", Stdlib.class, "substring", String.class,
+          String.class, double.class, double.class),
+      bind("indexOf", Stdlib.class, "indexOf", double.class, String.class, String.class),
+      bind("startsWith", Stdlib.class, "startsWith", boolean.class, String.class, String.class),
+      bind("endsWith", Stdlib.class, "endsWith", boolean.class, String.class, String.class),
+      bind("replace", Stdlib.class, "replace", String.class,
+          String.class, String.class, String.class),
+      bind("split", Stdlib.class, "split", Value.class, String.class, String.class),
+      bind("chr", Stdlib.class, "chr", String.class, double.class),
+      bind("ord", Stdlib.class, "ord", double.class, String.class));
+
+  private Stdlib() {}
+
+  static void define(Environment globals) {
+    for (var f : FUNCTIONS) globals.define(f.name(), f);
+  }
+
+  // Whether name is a function here whose result depends only on its arguments.
+  static boolean isPure(String name) {
+    return !name.equals("clock") && !name.equals("random")
+        && FUNCTIONS.stream().anyMatch(f -> f.name().equals(name));
+  }
+
+  private static LoxBoundFunction bind(String name, Class<?> owner, String method,
+                                       Class<?> returnType, Class<?>... parameterTypes) {
+    try {
+      final var handle = LOOKUP.findStatic(owner, method, methodType(returnType, parameterTypes));
+      return Natives.bind(name, handle);
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static double clock() {
+    return (double) System.currentTimeMillis() / 1000.0;
+  }
+
+  // halves round up, unlike Math.rint; x + 0.5 isn't exact for 0.49999999999999994 or past 2^52
+  private static double round(double x) {
+    final var floor = Math.floor(x);
+    return x - floor >= 0.5 ? floor + 1 : floor;
+  }
+
+  // the remainder has the sign of the divisor, so mod(-1, 3) is 2
+  private static double mod(double x, double y) {
+    final var r = x % y;
+    return r != 0 && (r < 0) != (y < 0) ? r + y : r;
+  }
+
+  private static String str(Value value) {
+    return value.toString();
+  }
+
+  // nil unless the whole string is a number literal
+  private static Value num(String s) {
+    final var t = s.strip();
+    if (t.isEmpty() || !(Character.isDigit(t.charAt(t.length() - 1)) || t.endsWith("."))) {
+      return new NilValue();
+    }
+    try {
+      return new NumValue(Double.parseDouble(t));
+    } catch (NumberFormatException e) {
+      return new NilValue();
+    }
+  }
+
+  private static String upper(String s) {
+    return s.toUpperCase(Locale.ROOT);
+  }
+
+  private static String lower(String s) {
+    return s.toLowerCase(Locale.ROOT);
+  }
+
+  private static String trim(String s) {
+    return s.strip();
+  }
+
+  private static boolean startsWith(String s, String prefix) {
+    return s.startsWith(prefix);
+  }
+
+  private static boolean endsWith(String s, String suffix) {
+    return s.endsWith(suffix);
+  }
+
+  private static String substring(String s, double start, double end) {
+    if (start != Math.floor(start) || end != Math.floor(end)) {
+      throw new NativeError("Arguments 2 and 3 to substring must be integers.");
+    }
+    if (start < 0 || end > s.length() || start > end) {
+      throw new NativeError(String.format("Range %s to %s is out of range for a string of length %d.",
+          new NumValue(start), new NumValue(end), s.length()));
+    }
+    return s.substring((int) start, (int) end);
+  }
+
+  private static double indexOf(String s, String part) {
+    return s.indexOf(part);
+  }
+
+  private static String replace(String s, String target, String replacement) {
+    return s.replace(target, replacement);
+  }
+
+  private static Value split(String s, String separator) {
+    final var parts = separator.isEmpty()
+        ? s.split("")
+        : s.split(Pattern.quote(separator), -1);
+    final var list = new LoxList(parts.length);
+    for (var part : parts) list.append(new StrValue(part));
+    return list;
+  }
+
+  private static String chr(double code) {
+    if (code < 0 || code != Math.floor(code) || !Character.isValidCodePoint((int) code)) {
+      throw new NativeError("Argument 1 to chr must be a code point.");
+    }
+    return Character.toString((int) code);
+  }
+
+  private static double ord(String s) {
+    if (s.isEmpty()) throw new NativeError("Argument 1 to ord must not be empty.");
+    return s.codePointAt(0);
+  }
+}
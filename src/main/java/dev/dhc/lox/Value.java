@@ -2,11 +2,23 @@ package dev.dhc.lox;
 
 import dev.dhc.lox.AstNode.Stmt;
 import dev.dhc.lox.Error.RuntimeError;
-import java.util.HashMap;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.invoke.MethodHandle;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.BiFunction;
+import java.util.function.Supplier;
 
 public sealed interface Value {
   enum Type {
@@ -17,6 +29,14 @@ public sealed interface Value {
     CALLABLE,
     CLASS,
     INSTANCE,
+    TASK,
+    CHANNEL,
+    LIST,
+    MAP,
+    ARRAY,
+    READER,
+    WRITER,
+    ITERATOR,
   }
 
   Type type();
@@ -57,12 +77,65 @@ public sealed interface Value {
     }
   }
 
+  // A Java method bound by Natives.bind. Its handle takes the arguments as separate values and
+  // converts them itself, so the evaluator can call it without collecting them into a list.
+  final class LoxBoundFunction implements LoxCallable {
+    static final int MAX_ARITY = 3;
+
+    private final String name;
+    private final int arity;
+    private final Supplier<MethodHandle> adapter;
+    // built on the first call; racing threads build equivalent handles
+    private MethodHandle handle = null;
+
+    LoxBoundFunction(String name, int arity, Supplier<MethodHandle> adapter) {
+      this.name = name;
+      this.arity = arity;
+      this.adapter = adapter;
+    }
+
+    @Override public String toString() { return "<native fn>"; }
+    @Override public Type type() { return Type.CALLABLE; }
+    @Override public int arity() { return arity; }
+    @Override public Value call(Evaluator eval, List<Value> arguments) {
+      return invoke(
+          arity > 0 ? arguments.get(0) : null,
+          arity > 1 ? arguments.get(1) : null,
+          arity > 2 ? arguments.get(2) : null);
+    }
+
+    String name() {
+      return name;
+    }
+
+    // Calls the method with the first arity of the given arguments.
+    Value invoke(Value a, Value b, Value c) {
+      var h = handle;
+      if (h == null) h = handle = adapter.get();
+      try {
+        return switch (arity) {
+          case 0 -> (Value) h.invokeExact();
+          case 1 -> (Value) h.invokeExact(a);
+          case 2 -> (Value) h.invokeExact(a, b);
+          case 3 -> (Value) h.invokeExact(a, b, c);
+          default -> throw new AssertionError(arity);
+        };
+      } catch (RuntimeException | java.lang.Error e) {
+        throw e;
+      } catch (Throwable e) {
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+
   enum FunctionType {
     FUNCTION,
     INITIALIZER,
   }
 
-  record LoxFunction(String name, Environment closure, List<String> params, List<Stmt> body, FunctionType ftype)
+  // owner is the name of the class for methods, and line where the function is declared.
+  record LoxFunction(String name, Optional<String> owner, int line, Environment closure,
+                     List<String> params, List<Stmt> body, FunctionType ftype)
       implements LoxCallable {
     @Override public String toString() { return String.format("<fn %s>", name); }
     @Override public int arity() { return params.size(); }
@@ -71,10 +144,29 @@ public sealed interface Value {
       var returnValue = eval.call(this, closure, arguments);
       return (ftype == FunctionType.INITIALIZER) ? closure.getAt(0, "this") : returnValue;
     }
-    public LoxFunction bind(LoxInstance instance) {
+    public LoxFunction bind(Evaluator eval, LoxInstance instance) {
+      eval.stats().environment(line);
+      eval.stats().closure(line);
+      eval.allocate(line, Evaluator.ENVIRONMENT_BYTES + Evaluator.FUNCTION_BYTES);
       var env = new Environment(closure);
       env.define("this", instance);
-      return new LoxFunction(name, env, params, body, ftype);
+      return new LoxFunction(name, owner, line, env, params, body, ftype);
+    }
+  }
+
+  // A pure function whose results are cached (see Memoizer).
+  record LoxMemoFunction(LoxFunction function, Memoizer.Cache cache) implements LoxCallable {
+    @Override public String toString() { return function.toString(); }
+    @Override public int arity() { return function.arity(); }
+    @Override public Type type() { return Type.CALLABLE; }
+    @Override public Value call(Evaluator eval, List<Value> arguments) {
+      final var key = Memoizer.Cache.key(arguments);
+      if (key.isEmpty()) return function.call(eval, arguments);
+      final var cached = cache.get(key.get());
+      if (cached.isPresent()) return cached.get();
+      final var result = function.call(eval, arguments);
+      cache.put(key.get(), result);
+      return result;
     }
   }
 
@@ -84,7 +176,9 @@ public sealed interface Value {
     @Override public int arity() {return findMethod("init").map(LoxFunction::arity).orElse(0);}
     @Override public Value call(Evaluator eval, List<Value> args) {
       var instance = new LoxInstance(this);
-      findMethod("init").ifPresent(init -> init.bind(instance).call(eval, args));
+      eval.stats().instance(this);
+      eval.allocate(Evaluator.INSTANCE_BYTES);
+      findMethod("init").ifPresent(init -> init.bind(eval, instance).call(eval, args));
       return instance;
     }
     public Optional<LoxFunction> findMethod(String name) {
@@ -95,7 +189,10 @@ public sealed interface Value {
 
   final class LoxInstance implements Value {
     private final LoxClass klass;
-    private final Map<String, Value> fields = new HashMap<>();
+    // Always concurrent, unlike scopes (see Environment.share). An instance can reach a task long
+    // after the spawn, through a global, a field, a list or a channel, so there is no single point
+    // at which to convert its map.
+    private final Map<String, Value> fields = new ConcurrentHashMap<>();
 
     LoxInstance(LoxClass klass) {
       this.klass = klass;
@@ -104,12 +201,20 @@ public sealed interface Value {
     @Override public String toString() { return String.format("%s instance", klass.name); }
     @Override public Type type() {return Type.INSTANCE;}
 
-    public Value get(Token name) {
+    LoxClass klass() {
+      return klass;
+    }
+
+    Map<String, Value> fields() {
+      return fields;
+    }
+
+    public Value get(Evaluator eval, Token name) {
       if (fields.containsKey(name.cargo())) {
         return fields.get(name.cargo());
       }
 
-      var method = klass.findMethod(name.cargo()).map(m -> m.bind(this));
+      var method = klass.findMethod(name.cargo()).map(m -> m.bind(eval, this));
       return method.orElseThrow(() ->
           new RuntimeError(name.line(), String.format("Undefined property '%s'.", name.cargo())));
     }
@@ -118,4 +223,449 @@ public sealed interface Value {
       fields.put(name.cargo(), value);
     }
   }
+
+  // A function running on another thread, created by spawn.
+  final class LoxTask implements Value {
+    private final CompletableFuture<Value> result;
+
+    LoxTask(CompletableFuture<Value> result) {
+      this.result = result;
+    }
+
+    @Override public String toString() { return "<task>"; }
+    @Override public Type type() { return Type.TASK; }
+
+    CompletableFuture<Value> result() {
+      return result;
+    }
+  }
+
+  final class LoxChannel implements Value {
+    private final BlockingQueue<Value> queue;
+
+    LoxChannel(BlockingQueue<Value> queue) {
+      this.queue = queue;
+    }
+
+    @Override public String toString() { return "<channel>"; }
+    @Override public Type type() { return Type.CHANNEL; }
+
+    BlockingQueue<Value> queue() {
+      return queue;
+    }
+  }
+
+  // A growable list. While it only holds numbers they are stored unboxed; storing anything else
+  // switches it to an array of values for good. Lists are synchronized, since tasks can share them.
+  final class LoxList implements Value {
+    private double[] numbers;
+    private Value[] values = null;
+    private int size = 0;
+
+    LoxList(int capacity) {
+      numbers = new double[Math.max(capacity, 8)];
+    }
+
+    @Override public Type type() { return Type.LIST; }
+
+    @Override public synchronized String toString() {
+      final var s = new StringBuilder("[");
+      for (int i = 0; i < size; i++) {
+        if (i > 0) s.append(", ");
+        s.append(values == null ? new NumValue(numbers[i]) : values[i]);
+      }
+      return s.append("]").toString();
+    }
+
+    synchronized int size() {
+      return size;
+    }
+
+    synchronized Value get(int i) {
+      return values == null ? new NumValue(numbers[i]) : values[i];
+    }
+
+    synchronized void set(int i, Value value) {
+      if (values == null && value instanceof NumValue(double d)) {
+        numbers[i] = d;
+      } else {
+        boxed()[i] = value;
+      }
+    }
+
+    // Returns the number of bytes newly allocated for storage.
+    synchronized long append(Value value) {
+      var grown = 0L;
+      if (values == null) {
+        if (value instanceof NumValue(double d)) {
+          if (size == numbers.length) {
+            numbers = Arrays.copyOf(numbers, size * 2);
+            grown = 8L * numbers.length;
+          }
+          numbers[size++] = d;
+          return grown;
+        }
+        grown = 4L * numbers.length;
+        boxed();
+      }
+      if (size == values.length) {
+        values = Arrays.copyOf(values, size * 2);
+        grown += 4L * values.length;
+      }
+      values[size++] = value;
+      return grown;
+    }
+
+    synchronized List<Value> elements() {
+      final var elements = new ArrayList<Value>(size);
+      for (int i = 0; i < size; i++) elements.add(get(i));
+      return elements;
+    }
+
+    private Value[] boxed() {
+      if (values == null) {
+        values = new Value[numbers.length];
+        for (int i = 0; i < size; i++) values[i] = new NumValue(numbers[i]);
+        numbers = null;
+      }
+      return values;
+    }
+  }
+
+  // A hash map from strings and numbers to values, with open addressing and linear probing. Keys
+  // are compared like ==, and removal shifts later entries back instead of leaving tombstones.
+  // Maps are synchronized, since tasks can share them.
+  final class LoxMap implements Value {
+    private Value[] keys = new Value[8];
+    private Value[] values = new Value[8];
+    private int size = 0;
+
+    @Override public Type type() { return Type.MAP; }
+
+    @Override public synchronized String toString() {
+      final var s = new StringBuilder("{");
+      for (int i = 0; i < keys.length; i++) {
+        if (keys[i] == null) continue;
+        if (s.length() > 1) s.append(", ");
+        s.append(keys[i]).append(": ").append(values[i]);
+      }
+      return s.append("}").toString();
+    }
+
+    // StrValue and NumValue hash their contents, and strings cache their hash codes.
+    private static int hash(Value key) {
+      final var h = key.hashCode();
+      return h ^ (h >>> 16);
+    }
+
+    private int slot(Value key) {
+      final var mask = keys.length - 1;
+      var i = hash(key) & mask;
+      while (keys[i] != null && keys[i] != key && !keys[i].equals(key)) {
+        i = (i + 1) & mask;
+      }
+      return i;
+    }
+
+    synchronized int size() {
+      return size;
+    }
+
+    synchronized Optional<Value> get(Value key) {
+      return Optional.ofNullable(values[slot(key)]);
+    }
+
+    // Returns the number of bytes newly allocated for storage.
+    synchronized long put(Value key, Value value) {
+      final var i = slot(key);
+      values[i] = value;
+      if (keys[i] != null) return 0;
+      keys[i] = key;
+      if (++size * 4 <= keys.length * 3) return 0;
+      final var oldKeys = keys;
+      final var oldValues = values;
+      keys = new Value[oldKeys.length * 2];
+      values = new Value[oldKeys.length * 2];
+      for (int j = 0; j < oldKeys.length; j++) {
+        if (oldKeys[j] == null) continue;
+        final var k = slot(oldKeys[j]);
+        keys[k] = oldKeys[j];
+        values[k] = oldValues[j];
+      }
+      return 8L * keys.length;
+    }
+
+    synchronized Optional<Value> remove(Value key) {
+      var i = slot(key);
+      if (keys[i] == null) return Optional.empty();
+      final var removed = values[i];
+      final var mask = keys.length - 1;
+      // move back any entry whose probe sequence passes through the hole
+      for (var j = (i + 1) & mask; keys[j] != null; j = (j + 1) & mask) {
+        final var home = hash(keys[j]) & mask;
+        final var between = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+        if (!between) {
+          keys[i] = keys[j];
+          values[i] = values[j];
+          i = j;
+        }
+      }
+      keys[i] = null;
+      values[i] = null;
+      size--;
+      return Optional.of(removed);
+    }
+
+    synchronized List<Value> keys() {
+      final var result = new ArrayList<Value>(size);
+      for (var key : keys) {
+        if (key != null) result.add(key);
+      }
+      return result;
+    }
+
+    synchronized List<Value> values() {
+      final var result = new ArrayList<Value>(size);
+      for (var value : values) {
+        if (value != null) result.add(value);
+      }
+      return result;
+    }
+  }
+
+  // A fixed-length array of little-endian doubles in memory outside the Java heap, such as a
+  // memory-mapped file. The segment does its own bounds checks.
+  final class LoxArray implements Value {
+    private static final ValueLayout.OfDouble ELEMENT =
+        ValueLayout.JAVA_DOUBLE.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    private final MemorySegment segment;
+    private final boolean writable;
+
+    LoxArray(MemorySegment segment, boolean writable) {
+      this.segment = segment;
+      this.writable = writable;
+    }
+
+    @Override public String toString() { return String.format("<array %d>", length()); }
+    @Override public Type type() { return Type.ARRAY; }
+
+    long length() {
+      return segment.byteSize() / ELEMENT.byteSize();
+    }
+
+    boolean writable() {
+      return writable;
+    }
+
+    double get(long i) {
+      return segment.getAtIndex(ELEMENT, i);
+    }
+
+    void set(long i, double value) {
+      segment.setAtIndex(ELEMENT, i, value);
+    }
+  }
+
+  // The lines of a file or stdin, read on demand. Closed at the end of input or by close().
+  final class LoxReader implements Value {
+    private final String name;
+    // null once closed
+    private BufferedReader reader;
+
+    LoxReader(String name, BufferedReader reader) {
+      this.name = name;
+      this.reader = reader;
+    }
+
+    @Override public String toString() { return String.format("<reader %s>", name); }
+    @Override public Type type() { return Type.READER; }
+
+    // Returns the next line without its terminator, or empty at the end of input.
+    synchronized Optional<String> readLine() throws IOException {
+      if (reader == null) return Optional.empty();
+      final var line = reader.readLine();
+      if (line == null) close();
+      return Optional.ofNullable(line);
+    }
+
+    synchronized void close() throws IOException {
+      if (reader == null) return;
+      try {
+        reader.close();
+      } finally {
+        reader = null;
+      }
+    }
+  }
+
+  // A file being written through a buffer, which is written out whenever it fills and on close.
+  final class LoxWriter implements Value {
+    private final String name;
+    // null once closed
+    private Writer writer;
+
+    LoxWriter(String name, Writer writer) {
+      this.name = name;
+      this.writer = writer;
+    }
+
+    @Override public String toString() { return String.format("<writer %s>", name); }
+    @Override public Type type() { return Type.WRITER; }
+
+    // Returns false if the writer is closed.
+    synchronized boolean write(String s) throws IOException {
+      if (writer == null) return false;
+      writer.write(s);
+      return true;
+    }
+
+    synchronized void close() throws IOException {
+      if (writer == null) return;
+      try {
+        writer.close();
+      } finally {
+        writer = null;
+      }
+    }
+  }
+
+  // A lazy sequence of values, produced one at a time and consumed once. Like readers, iterators
+  // are meant to be consumed by one task at a time.
+  sealed interface LoxIterator extends Value {
+    // Returns the next value, or null at the end.
+    Value next(Evaluator eval);
+
+    @Override default Type type() { return Type.ITERATOR; }
+
+    // An iterator over an iterator, list or reader.
+    static Optional<LoxIterator> of(Value value) {
+      return switch (value) {
+        case LoxIterator iterator -> Optional.of(iterator);
+        case LoxList list -> Optional.of(new ElementIterator(list));
+        case LoxReader reader -> Optional.of(new LineIterator(reader));
+        default -> Optional.empty();
+      };
+    }
+  }
+
+  // The numbers from start up to but not including end, in steps of one. The evaluator drives
+  // these with hasNext and nextNumber, so for-each loops over ranges allocate nothing but the
+  // loop variable's values.
+  final class RangeIterator implements LoxIterator {
+    private double next;
+    private final double end;
+
+    RangeIterator(double start, double end) {
+      this.next = start;
+      this.end = end;
+    }
+
+    @Override public String toString() { return "<iterator>"; }
+
+    boolean hasNext() {
+      return next < end;
+    }
+
+    double nextNumber() {
+      return next++;
+    }
+
+    @Override public Value next(Evaluator eval) {
+      return hasNext() ? new NumValue(nextNumber()) : null;
+    }
+  }
+
+  // The elements of a list, including any appended while iterating.
+  final class ElementIterator implements LoxIterator {
+    private final LoxList list;
+    private int index = 0;
+
+    ElementIterator(LoxList list) {
+      this.list = list;
+    }
+
+    @Override public String toString() { return "<iterator>"; }
+
+    @Override public Value next(Evaluator eval) {
+      synchronized (list) {
+        return index < list.size() ? list.get(index++) : null;
+      }
+    }
+  }
+
+  final class LineIterator implements LoxIterator {
+    private final LoxReader reader;
+
+    LineIterator(LoxReader reader) {
+      this.reader = reader;
+    }
+
+    @Override public String toString() { return "<iterator>"; }
+
+    @Override public Value next(Evaluator eval) {
+      try {
+        final var line = reader.readLine();
+        line.ifPresent(eval::madeString);
+        return line.<Value>map(StrValue::new).orElse(null);
+      } catch (IOException e) {
+        throw new Natives.NativeError(String.format("Could not read %s: %s", reader, e));
+      }
+    }
+  }
+
+  final class TransformIterator implements LoxIterator {
+    private final LoxIterator source;
+    private final LoxCallable f;
+
+    TransformIterator(LoxIterator source, LoxCallable f) {
+      this.source = source;
+      this.f = f;
+    }
+
+    @Override public String toString() { return "<iterator>"; }
+
+    @Override public Value next(Evaluator eval) {
+      final var value = source.next(eval);
+      return value == null ? null : f.call(eval, List.of(value));
+    }
+  }
+
+  final class FilterIterator implements LoxIterator {
+    private final LoxIterator source;
+    private final LoxCallable predicate;
+
+    FilterIterator(LoxIterator source, LoxCallable predicate) {
+      this.source = source;
+      this.predicate = predicate;
+    }
+
+    @Override public String toString() { return "<iterator>"; }
+
+    @Override public Value next(Evaluator eval) {
+      for (var value = source.next(eval); value != null; value = source.next(eval)) {
+        if (Evaluator.isTruthy(predicate.call(eval, List.of(value)))) return value;
+      }
+      return null;
+    }
+  }
+
+  // At most the first count values of its source, which is not advanced any further.
+  final class TakeIterator implements LoxIterator {
+    private final LoxIterator source;
+    private long remaining;
+
+    TakeIterator(LoxIterator source, long count) {
+      this.source = source;
+      this.remaining = count;
+    }
+
+    @Override public String toString() { return "<iterator>"; }
+
+    @Override public Value next(Evaluator eval) {
+      if (remaining <= 0) return null;
+      remaining--;
+      return source.next(eval);
+    }
+  }
 }
@@ -0,0 +1,86 @@
+package dev.dhc.lox;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import dev.dhc.lox.Driver.Command;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Times are different on every run, so baselines are written with medians no run can miss or meet.
+public class BenchTest {
+  private record Result(Status status, String out, String err) {}
+
+  @TempDir
+  Path dir;
+
+  private Result bench(Path script, Optional<Path> json, Optional<Path> baseline) {
+    final var out = new ByteArrayOutputStream();
+    final var err = new ByteArrayOutputStream();
+    final var command = new Command.Bench(script.toString(), 1, 3, false,
+        json.map(Path::toString), baseline.map(Path::toString), 10);
+    final var status = new Driver(new ByteArrayInputStream(new byte[]{}), new PrintStream(out),
+        new PrintStream(err), Driver.Options.DEFAULT).run(command);
+    return new Result(status, out.toString(UTF_8), err.toString(UTF_8));
+  }
+
+  private Path script(String name) throws IOException {
+    final var script = dir.resolve(name);
+    Files.writeString(script, "var sum = 0;\nfor (var i = 0; i < 1000; i = i + 1) sum = sum + i;\n");
+    return script;
+  }
+
+  // Writes the results of a bench run with every median replaced.
+  private Path baseline(Path script, long medianNanos) throws IOException {
+    final var json = dir.resolve("results.json");
+    assertEquals(Status.SUCCESS, bench(script, Optional.of(json), Optional.empty()).status());
+    final var baseline = dir.resolve("baseline.json");
+    Files.writeString(baseline, Files.readString(json)
+        .replaceAll("\"median_ns\": \\d+", "\"median_ns\": " + medianNanos));
+    return baseline;
+  }
+
+  @Test
+  void testJson() throws IOException {
+    final var script = script("sum \"quoted\".lox");
+    final var json = dir.resolve("results.json");
+    final var result = bench(script, Optional.of(json), Optional.empty());
+    assertEquals(Status.SUCCESS, result.status());
+    assertTrue(result.out().contains("sum \"quoted\".lox"), result.out());
+    final var written = Files.readString(json);
+    assertTrue(written.startsWith("{\n  \"warmup\": 1,\n  \"runs\": 3,\n  \"results\": [\n"), written);
+    assertTrue(written.contains("{\"script\": \"sum \\\"quoted\\\".lox\", \"min_ns\": "), written);
+  }
+
+  @Test
+  void testWithinBaseline() throws IOException {
+    final var script = script("sum.lox");
+    final var result = bench(script, Optional.empty(), Optional.of(baseline(script, Long.MAX_VALUE / 2)));
+    assertEquals(new Result(Status.SUCCESS, result.out(), ""), result);
+  }
+
+  @Test
+  void testRegression() throws IOException {
+    final var script = script("sum \"quoted\".lox");
+    final var result = bench(script, Optional.empty(), Optional.of(baseline(script, 1)));
+    assertEquals(Status.FAILURE, result.status());
+    assertTrue(result.err().startsWith("sum \"quoted\".lox: median "), result.err());
+    assertTrue(result.err().contains("slower than baseline 0.000 ms (threshold 10.0%)"), result.err());
+  }
+
+  @Test
+  void testInvalidBaseline() throws IOException {
+    final var script = script("sum.lox");
+    final var baseline = dir.resolve("baseline.json");
+    Files.writeString(baseline, "{\"results\": [{\"script\": \"sum.lox\", ");
+    assertEquals(Status.IO_ERROR, bench(script, Optional.empty(), Optional.of(baseline)).status());
+  }
+}
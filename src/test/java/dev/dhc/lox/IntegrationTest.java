@@ -1,6 +1,7 @@
 package dev.dhc.lox;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 
 import au.com.origin.snapshots.Expect;
 import au.com.origin.snapshots.junit5.SnapshotExtension;
@@ -11,9 +12,13 @@ import dev.dhc.lox.Driver.Command.Run;
 import dev.dhc.lox.Driver.Command.Tokenize;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.ValueSource;
@@ -23,10 +28,14 @@ public class IntegrationTest {
   private record Result(int code, List<String> outLines, List<String> errLines) {}
 
   private Result execute(Command command) {
+    return execute(command, Driver.Options.DEFAULT);
+  }
+
+  private Result execute(Command command, Driver.Options options) {
     final var in = new ByteArrayInputStream(new byte[]{});
     final var out = new ByteArrayOutputStream();
     final var err = new ByteArrayOutputStream();
-    final var exit = new Driver(in, new PrintStream(out), new PrintStream(err)).run(command).code();
+    final var exit = new Driver(in, new PrintStream(out), new PrintStream(err), options).run(command).code();
     return new Result(
         exit,
         out.toString(UTF_8).lines().toList(),
@@ -88,8 +97,93 @@ public class IntegrationTest {
       "inputs/interpret/resolve.lox",
       "inputs/interpret/classes.lox",
       "inputs/interpret/inheritance.lox",
+      "inputs/interpret/strings.lox",
+      "inputs/interpret/optimizer.lox",
+      "inputs/interpret/inlining.lox",
+      "inputs/interpret/loops.lox",
+      "inputs/interpret/concurrency.lox",
+      "inputs/interpret/lists.lox",
+      "inputs/interpret/maps.lox",
+      "inputs/interpret/streams.lox",
+      "inputs/interpret/iterators.lox",
+      "inputs/interpret/stdlib.lox",
+      "inputs/interpret/import.lox",
   })
   void testInterpret(String resource) {
     expect.scenario(resource).toMatchSnapshot(execute(new Run(resourcePath(resource))));
   }
+
+  @ParameterizedTest
+  @ValueSource(strings = {
+      "inputs/interpret/memoize.lox",
+  })
+  void testMemoize(String resource) {
+    final var options = new Driver.Options(false, false, Budget.UNLIMITED, Driver.Options.MEMO_SIZE);
+    expect.scenario(resource).toMatchSnapshot(execute(new Run(resourcePath(resource)), options));
+  }
+
+  // Only the counters are compared, since phase times vary from run to run.
+  @ParameterizedTest
+  @ValueSource(strings = {
+      "inputs/stats/inlining.lox",
+  })
+  void testStats(String resource) {
+    final var options = new Driver.Options(true, false, Budget.UNLIMITED, 0);
+    final var result = execute(new Run(resourcePath(resource)), options);
+    final var counters = result.errLines().subList(result.errLines().indexOf("") + 1, result.errLines().size());
+    expect.scenario(resource).toMatchSnapshot(new Result(result.code(), result.outLines(), counters));
+  }
+
+  // Each script runs twice, starting without the file it maps, to check that writes persist.
+  @ParameterizedTest
+  @ValueSource(strings = {
+      "inputs/arrays/mmap.lox",
+  })
+  void testArrays(String resource) throws IOException {
+    Files.deleteIfExists(Paths.get("target/array.bin"));
+    for (var run = 1; run <= 2; run++) {
+      expect.scenario(resource + ", run " + run).toMatchSnapshot(execute(new Run(resourcePath(resource))));
+    }
+  }
+
+  @ParameterizedTest
+  @ValueSource(strings = {
+      "inputs/budget/fuel.lox",
+      "inputs/budget/allocation.lox",
+  })
+  void testBudget(String resource) {
+    final var options = new Driver.Options(false, false, new Budget(100_000, 1_000_000), 0);
+    expect.scenario(resource).toMatchSnapshot(execute(new Run(resourcePath(resource)), options));
+  }
+
+  // The output of each script comes out whole and in the given order, however many run at once.
+  @ParameterizedTest
+  @ValueSource(ints = {1, 2, 3})
+  void testParallel(int workers) {
+    final var paths = Stream.of("a", "b", "c")
+        .map(name -> resourcePath("inputs/parallel/" + name + ".lox"))
+        .toList();
+    expect.scenario(String.valueOf(workers)).toMatchSnapshot(execute(new Command.RunParallel(paths, workers)));
+  }
+
+  @ParameterizedTest
+  @ValueSource(strings = {
+      "inputs/heap/sites.lox",
+  })
+  void testHeap(String resource) {
+    final var options = new Driver.Options(false, true, Budget.UNLIMITED, 0);
+    expect.scenario(resource).toMatchSnapshot(execute(new Run(resourcePath(resource)), options));
+  }
+
+  @ParameterizedTest
+  @ValueSource(strings = {
+      "inputs/snapshot/main.lox",
+  })
+  void testSnapshot(String resource) {
+    final var image = "target/prelude.snap";
+    final var saved = execute(new Command.Snapshot(resourcePath("inputs/snapshot/prelude.lox"), image));
+    assertEquals(List.of("loading geometry", "running prelude"), saved.outLines());
+    assertEquals(0, saved.code());
+    expect.scenario(resource).toMatchSnapshot(execute(new Run(resourcePath(resource), Optional.of(image))));
+  }
 }
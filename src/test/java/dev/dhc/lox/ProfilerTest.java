@@ -0,0 +1,75 @@
+package dev.dhc.lox;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import dev.dhc.lox.Driver.Command;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Samples are taken at times that vary from run to run, so only their shape is checked.
+public class ProfilerTest {
+  private record Result(Status status, List<String> outLines, List<String> errLines) {}
+
+  private static final String SCRIPT = "inputs/profile/fib.lox";
+
+  @TempDir
+  Path dir;
+
+  private Result profile(Driver.Options options) {
+    final var out = new ByteArrayOutputStream();
+    final var err = new ByteArrayOutputStream();
+    final var command = new Command.Profile(resourcePath(SCRIPT), 0.1, 3, dir.resolve("fib.folded").toString());
+    final var status = new Driver(new ByteArrayInputStream(new byte[]{}), new PrintStream(out),
+        new PrintStream(err), options).run(command);
+    return new Result(status, out.toString(UTF_8).lines().toList(), err.toString(UTF_8).lines().toList());
+  }
+
+  private String resourcePath(String resource) {
+    final var url = getClass().getClassLoader().getResource(resource);
+    if (url == null) throw new RuntimeException("resource not found: " + resource);
+    return Paths.get(url.getPath()).toFile().getAbsolutePath();
+  }
+
+  @Test
+  void testCollapsedStacks() throws IOException {
+    final var result = profile(Driver.Options.DEFAULT);
+    assertEquals(Status.SUCCESS, result.status());
+    assertEquals(List.of("46368"), result.outLines());
+
+    final var stacks = Files.readAllLines(dir.resolve("fib.folded"));
+    assertTrue(stacks.stream().allMatch(line -> line.matches("<script>(;run:7(;fib:2)*)? [1-9][0-9]*")),
+        String.join("\n", stacks));
+    assertTrue(stacks.stream().anyMatch(line -> line.startsWith("<script>;run:7;fib:2;fib:2")),
+        String.join("\n", stacks));
+
+    // a summary line, the header and the top 3 functions, fib first since it does all the work
+    final var table = result.errLines();
+    assertEquals(5, table.size(), String.join("\n", table));
+    assertTrue(table.get(0).endsWith(" ms, collapsed stacks written to " + dir.resolve("fib.folded")),
+        table.get(0));
+    assertTrue(table.get(1).matches("function +self +self% +total +total%"), table.get(1));
+    assertTrue(table.get(2).startsWith("fib:2 "), table.get(2));
+    assertTrue(table.stream().skip(2).anyMatch(row -> row.startsWith("run:7 ")),
+        String.join("\n", table));
+  }
+
+  @Test
+  void testOptions() {
+    // fib(24) takes far more fuel than this unless it is memoized
+    final var fuel = new Budget(1_000, 0);
+    assertEquals(Status.BUDGET_EXHAUSTED, profile(new Driver.Options(false, false, fuel, 0)).status());
+    final var memoized = profile(new Driver.Options(false, false, fuel, Driver.Options.MEMO_SIZE));
+    assertEquals(Status.SUCCESS, memoized.status());
+    assertEquals(List.of("46368"), memoized.outLines());
+  }
+}
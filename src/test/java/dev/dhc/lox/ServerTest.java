@@ -0,0 +1,106 @@
+package dev.dhc.lox;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+// Runs a Server on a temporary socket in this JVM and sends it requests through Client, from a
+// working directory of its own so that script paths are resolved against it.
+public class ServerTest {
+  private record Result(Status status, String out, String err) {}
+
+  private static Path dir;
+  private static Path socket;
+  private static Thread server;
+
+  @BeforeAll
+  static void start() throws Exception {
+    dir = Files.createTempDirectory("lox-server");
+    socket = dir.resolve("lox.sock");
+    server = Thread.ofPlatform().daemon().start(() -> {
+      try {
+        new Server(socket, 2).serve();
+      } catch (IOException e) {
+        // closed by stop()
+      }
+    });
+    while (!Files.exists(socket)) Thread.sleep(10);
+  }
+
+  @AfterAll
+  static void stop() {
+    // interrupting accept() closes the server's channel
+    server.interrupt();
+  }
+
+  private static void script(String name, String source) throws IOException {
+    Files.writeString(dir.resolve(name), source);
+  }
+
+  private Result run(String stdin, String... args) throws IOException {
+    final var out = new ByteArrayOutputStream();
+    final var err = new ByteArrayOutputStream();
+    final var status = Client.run(socket, dir, args, new ByteArrayInputStream(stdin.getBytes(UTF_8)),
+        new PrintStream(out, true, UTF_8), new PrintStream(err, true, UTF_8));
+    return new Result(status, out.toString(UTF_8), err.toString(UTF_8));
+  }
+
+  @Test
+  void testRun() throws IOException {
+    script("hello.lox", "print \"hello\";\n");
+    assertEquals(new Result(Status.SUCCESS, "hello\n", ""), run("", "run", "hello.lox"));
+  }
+
+  @Test
+  void testRuntimeError() throws IOException {
+    script("error.lox", "print 1;\nprint 1 + nil;\n");
+    assertEquals(
+        new Result(Status.RUNTIME_ERROR, "1\n", "Operands must be two numbers or two strings.\n[line 2]\n"),
+        run("", "run", "error.lox"));
+  }
+
+  @Test
+  void testStdin() throws IOException {
+    script("count.lox", """
+        var input = stdin();
+        var n = 0;
+        for (var line = readLine(input); line != nil; line = readLine(input)) {
+          print line;
+          n = n + 1;
+        }
+        print n;
+        """);
+    assertEquals(new Result(Status.SUCCESS, "a\nb\n2\n", ""), run("a\nb\n", "run", "count.lox"));
+    // the empty frame that ends the input
+    assertEquals(new Result(Status.SUCCESS, "0\n", ""), run("", "run", "count.lox"));
+  }
+
+  @Test
+  void testUsageErrors() throws IOException {
+    assertEquals(
+        new Result(Status.USAGE_ERROR, "", "the repl can't be run through the server\n"), run(""));
+    assertEquals(Status.USAGE_ERROR, run("", "--fuel").status());
+  }
+
+  @Test
+  void testSurvivesStackOverflow() throws IOException {
+    script("deep.lox", "fun f(n) { return f(n + 1); }\nprint \"before\";\nf(0);\n");
+    final var result = run("", "run", "deep.lox");
+    assertEquals(Status.FAILURE, result.status());
+    assertEquals("before\n", result.out());
+    assertTrue(result.err().contains("StackOverflowError"), result.err());
+
+    script("after.lox", "print \"still serving\";\n");
+    assertEquals(new Result(Status.SUCCESS, "still serving\n", ""), run("", "run", "after.lox"));
+  }
+}